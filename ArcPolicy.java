@@ -0,0 +1,101 @@
+// ARC (Megiddo and Modha): T1 holds blocks used once and T2 blocks used
+// more than once, both in LRU order. B1 and B2 remember the numbers of
+// blocks recently evicted from each. A miss on a block in B1 means T1 was
+// too small, one in B2 that T2 was, and the target size p of T1 moves
+// accordingly, so the cache adapts between recency and frequency. Every
+// hit moves its frame to the front of T2, so hits need the stripe lock.
+public class ArcPolicy implements CachePolicy {
+   private final int size;       // c in the paper
+   private int p = 0;            // target size of T1
+   private final FrameList free; // frames holding no block
+   private final FrameList t1;
+   private final FrameList t2;
+   private final GhostList b1;
+   private final GhostList b2;
+   private final int[] blockOf;
+
+   public ArcPolicy( int size ) {
+      this.size = size;
+      free = new FrameList( size );
+      t1 = new FrameList( size );
+      t2 = new FrameList( size );
+      b1 = new GhostList( size );
+      b2 = new GhostList( size );
+      blockOf = new int[size];
+      for ( int frame = 0; frame < size; frame++ ) {
+         free.addLast( frame );
+         blockOf[frame] = -1;
+      }
+   }
+
+   public boolean lockFreeHits( ) {
+      return false;
+   }
+
+   public void hit( int frame, int block ) {
+      if ( blockOf[frame] != block )
+         return;
+      t1.remove( frame );
+      t2.remove( frame );
+      t2.addFirst( frame );
+   }
+
+   // p once a miss on block has been taken into account
+   private int target( int block ) {
+      if ( b1.contains( block ) )
+         return Math.min( size, p + Math.max( b2.size( ) / b1.size( ), 1 ) );
+      if ( b2.contains( block ) )
+         return Math.max( 0, p - Math.max( b1.size( ) / b2.size( ), 1 ) );
+      return p;
+   }
+
+   public int victim( Frames frames, int block ) {
+      int frame = free.claimLast( frames );
+      if ( frame >= 0 )
+         return frame;
+      int q = target( block );
+      boolean fromT1 = t1.size( ) > 0
+         && ( t1.size( ) > q || ( b2.contains( block ) && t1.size( ) == q ) );
+      FrameList first = fromT1 ? t1 : t2;
+      frame = first.claimLast( frames );
+      if ( frame < 0 )
+         frame = ( fromT1 ? t2 : t1 ).claimLast( frames );
+      return frame;
+   }
+
+   public void loaded( int frame, int block ) {
+      p = target( block );
+      int old = blockOf[frame];
+      if ( old >= 0 ) {
+         if ( t1.contains( frame ) )
+            b1.addFirst( old );
+         else if ( t2.contains( frame ) )
+            b2.addFirst( old );
+      }
+      free.remove( frame );
+      t1.remove( frame );
+      t2.remove( frame );
+      if ( b1.contains( block ) || b2.contains( block ) ) { // seen before
+         b1.remove( block );
+         b2.remove( block );
+         t2.addFirst( frame );
+      } else
+         t1.addFirst( frame );
+      blockOf[frame] = block;
+
+      // keep |T1| + |B1| <= c and the whole directory within 2c
+      while ( t1.size( ) + b1.size( ) > size && b1.size( ) > 0 )
+         b1.removeLast( );
+      while ( t1.size( ) + t2.size( ) + b1.size( ) + b2.size( ) > 2 * size
+              && b2.size( ) > 0 )
+         b2.removeLast( );
+   }
+
+   public void removed( int frame ) {
+      t1.remove( frame );
+      t2.remove( frame );
+      if ( !free.contains( frame ) )
+         free.addLast( frame );
+      blockOf[frame] = -1;
+   }
+}
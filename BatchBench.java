@@ -0,0 +1,103 @@
+import java.util.Random;
+
+// Compares one syscall per operation against the same operations queued in
+// a SyscallBatch and submitted at once:
+//  1. small files: open, read and close each of several small files
+//  2. raw blocks: read blocks scattered over the disk, which a batch can
+//     visit in block order
+// Usage: l BatchBench [files] [blocks]
+public class BatchBench extends Thread {
+   private final static int fileSize = 64;
+
+   private int files = 10;
+   private int blocks = 40;
+
+   public BatchBench( ) {
+   }
+
+   public BatchBench( String args[] ) {
+      if ( args.length > 0 )
+         files = Integer.parseInt( args[0] );
+      if ( args.length > 1 )
+         blocks = Integer.parseInt( args[1] );
+   }
+
+   private static String fileName( int i ) {
+      return "batch" + i;
+   }
+
+   private static void report( String name, long millis, int ops ) {
+      SysLib.cout( name + millis + " ms ("
+                   + ( ops * 1000L / Math.max( millis, 1 ) ) + " ops/sec)\n" );
+   }
+
+   private boolean smallFiles( ) {
+      byte[] data = new byte[fileSize];
+      for ( int i = 0; i < files; i++ ) {
+         int fd = SysLib.open( fileName( i ), "w" );
+         SysLib.write( fd, data );
+         SysLib.close( fd );
+      }
+
+      long start = System.currentTimeMillis( );
+      for ( int i = 0; i < files; i++ ) {
+         int fd = SysLib.open( fileName( i ), "r" );
+         SysLib.read( fd, data );
+         SysLib.close( fd );
+      }
+      report( "small files, one call each: ",
+              System.currentTimeMillis( ) - start, files * 3 );
+
+      SyscallBatch batch = new SyscallBatch( files * 3 );
+      byte[][] buffers = new byte[files][fileSize];
+      for ( int i = 0; i < files; i++ ) {
+         batch.open( fileName( i ), "r" );
+         batch.read( SyscallBatch.LINK, buffers[i] );
+         batch.close( SyscallBatch.LINK );
+      }
+      start = System.currentTimeMillis( );
+      int succeeded = SysLib.submit( batch );
+      report( "small files, one batch:     ",
+              System.currentTimeMillis( ) - start, files * 3 );
+
+      for ( int i = 0; i < files; i++ )
+         SysLib.delete( fileName( i ) );
+      for ( int i = 0; i < files; i++ )
+         if ( batch.result( i * 3 + 1 ) != fileSize ) {
+            SysLib.cerr( "BatchBench: reading " + fileName( i ) + " failed\n" );
+            return false;
+         }
+      return succeeded == files * 3;
+   }
+
+   private boolean rawBlocks( ) {
+      int blockSize = SysLib.blockSize( );
+      int diskBlocks = 1000 * Disk.defaultBlockSize / blockSize;
+      int[] blockIds = new int[blocks];
+      Random random = new Random( 32 );
+      for ( int i = 0; i < blocks; i++ )
+         blockIds[i] = random.nextInt( diskBlocks );
+
+      byte[] data = new byte[blockSize];
+      long start = System.currentTimeMillis( );
+      for ( int i = 0; i < blocks; i++ )
+         SysLib.rawread( blockIds[i], data );
+      report( "raw blocks, one call each:  ",
+              System.currentTimeMillis( ) - start, blocks );
+
+      SyscallBatch batch = new SyscallBatch( blocks );
+      for ( int i = 0; i < blocks; i++ )
+         batch.rawread( blockIds[i], new byte[blockSize] );
+      start = System.currentTimeMillis( );
+      int succeeded = SysLib.submit( batch );
+      report( "raw blocks, one batch:      ",
+              System.currentTimeMillis( ) - start, blocks );
+      return succeeded == blocks;
+   }
+
+   public void run( ) {
+      if ( !smallFiles( ) || !rawBlocks( ) )
+         SysLib.cerr( "BatchBench: a batched operation failed\n" );
+      SysLib.exit( );
+   }
+}
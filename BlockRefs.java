@@ -0,0 +1,114 @@
+// The # of block pointers that lead to each disk block: from inodes, and
+// from index blocks. A block with more than one is shared between files
+// that FileSystem.clone() made from one another, and a file that writes to
+// a shared block first gets a copy of its own (copy on write). An index
+// block counts once however many files share it, and so do the blocks it
+// points to; a file that changes a shared index block copies it first, and
+// the blocks it lists gain a pointer from the copy.
+//
+// The counts are not kept on disk, because the pointers are: scan() counts
+// them at mount, from one batch of inode block reads and one of index
+// blocks. The other methods are synchronized, and do no I/O.
+public class BlockRefs {
+    private final int[] refs; // by block
+    private final int blockSize;
+
+    public BlockRefs(int totalBlocks, int blockSize) {
+        refs = new int[totalBlocks];
+        this.blockSize = blockSize;
+    }
+
+    private boolean inRange(int block) {
+        return block >= 0 && block < refs.length;
+    }
+
+    // counts the pointers of the first inodes inodes on disk
+    public void scan(int inodes) {
+        int[] refs = new int[this.refs.length]; // the old counts stand until done
+        Inode[] all = Inode.readAll(inodes);
+        int[] indexBlocks = new int[inodes];
+        int n = 0;
+        for (Inode inode : all) {
+            for (int d = 0; d < Inode.directSize; d++)
+                if (inRange(inode.direct[d]))
+                    refs[inode.direct[d]]++;
+            if (inRange(inode.indirect) && refs[inode.indirect]++ == 0)
+                indexBlocks[n++] = inode.indirect; // the first file to point to it
+        }
+        byte[][] buffers = new byte[n][blockSize];
+        SyscallBatch batch = new SyscallBatch(Math.max(n, 1));
+        for (int b = 0; b < n; b++)
+            batch.rawread(indexBlocks[b], buffers[b]);
+        if (SysLib.submit(batch) == Kernel.ERROR) // not a user thread: at boot
+            for (int b = 0; b < n; b++)
+                SysLib.rawread(indexBlocks[b], buffers[b]);
+        for (byte[] buffer : buffers)
+            for (int offset = 0; offset < blockSize; offset += 2) {
+                short block = SysLib.bytes2short(buffer, offset);
+                if (inRange(block))
+                    refs[block]++;
+            }
+        synchronized (this) {
+            System.arraycopy(refs, 0, this.refs, 0, refs.length);
+        }
+    }
+
+    // a block just taken off the free list
+    public synchronized void allocated(int block) {
+        if (inRange(block))
+            refs[block] = 1;
+    }
+
+    // another file points to block
+    public synchronized void share(int block) {
+        if (inRange(block))
+            refs[block]++;
+    }
+
+    public synchronized boolean isShared(int block) {
+        return inRange(block) && refs[block] > 1;
+    }
+
+    // A file stops pointing to a shared block, to write a copy instead:
+    // true if the block was shared, false if the other files let go of it
+    // meanwhile and it can be written where it is. The caller must have
+    // read the block before, since it is no longer the caller's to read.
+    public synchronized boolean unshare(int block) {
+        if (!isShared(block))
+            return false;
+        refs[block]--;
+        return true;
+    }
+
+    // unshare() for an index block, given its contents: the copy the caller
+    // writes points to the same blocks, which gain a pointer each
+    public synchronized boolean unshareIndex(int block, byte[] entries) {
+        if (!unshare(block))
+            return false;
+        for (int offset = 0; offset < entries.length; offset += 2)
+            share(SysLib.bytes2short(entries, offset));
+        return true;
+    }
+
+    // A file stops pointing to block: true if no other pointer leads to it
+    // now, and it should go back on the free list
+    public synchronized boolean release(int block) {
+        if (!inRange(block))
+            return false;
+        if (refs[block] > 1) {
+            refs[block]--;
+            return false;
+        }
+        refs[block] = 0;
+        return true;
+    }
+
+    // # of blocks that more than one pointer leads to
+    public synchronized int sharedBlocks() {
+        int shared = 0;
+        for (int r : refs)
+            if (r > 1)
+                shared++;
+        return shared;
+    }
+}
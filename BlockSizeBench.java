@@ -0,0 +1,87 @@
+import java.util.Date;
+
+// Formats the disk with each supported block size and measures sequential
+// write/read throughput of one large file and the space a tiny file costs,
+// which is none if the inodes are large enough to hold it (see Inode).
+// WARNING: destroys the contents of DISK.
+// Usage: l BlockSizeBench [fileBytes [inodeSize]]
+public class BlockSizeBench extends Thread {
+   private final static int[] blockSizes = { 512, 1024, 4096, 16384, 65536 };
+   private final static int files = 48;
+   private final static int directSize = 11; // see Inode.directSize
+
+   private int fileBytes = 32 * 1024;
+   private int inodeSize = 32;
+
+   public BlockSizeBench( ) {
+   }
+
+   public BlockSizeBench( String args[] ) {
+      if ( args.length > 0 )
+         fileBytes = Integer.parseInt( args[0] );
+      if ( args.length > 1 )
+         inodeSize = Integer.parseInt( args[1] );
+   }
+
+   // # of blocks a file of length bytes occupies, including its index block
+   private int blocksUsed( int length, int blockSize ) {
+      if ( inodeSize > 32 && length <= inodeSize - 8 )
+         return 0; // inline: kept where its block pointers would be
+      int dataBlocks = ( length + blockSize - 1 ) / blockSize;
+      if ( dataBlocks == 0 )
+         dataBlocks = 1; // the fs allocates a block on the first write
+      return dataBlocks + ( dataBlocks > directSize ? 1 : 0 );
+   }
+
+   private void measure( int blockSize ) {
+      if ( SysLib.format( files, blockSize, inodeSize ) != 0 ) {
+         SysLib.cout( blockSize + "\tformat failed (file too large?)\n" );
+         return;
+      }
+      byte[] wbytes = new byte[fileBytes];
+      byte[] rbytes = new byte[fileBytes];
+      for ( int i = 0; i < fileBytes; i++ )
+         wbytes[i] = ( byte )i;
+
+      long start = new Date( ).getTime( );
+      int fd = SysLib.open( "bench", "w" );
+      int written = SysLib.write( fd, wbytes );
+      SysLib.close( fd );
+      long writeTime = new Date( ).getTime( ) - start;
+
+      start = new Date( ).getTime( );
+      fd = SysLib.open( "bench", "r" );
+      int read = SysLib.read( fd, rbytes );
+      SysLib.close( fd );
+      long readTime = new Date( ).getTime( ) - start;
+
+      if ( written != fileBytes || read != fileBytes ) {
+         SysLib.cout( blockSize + "\tI/O failed (wrote " + written + ", read "
+                      + read + ")\n" );
+         return;
+      }
+      for ( int i = 0; i < fileBytes; i++ )
+         if ( rbytes[i] != wbytes[i] ) {
+            SysLib.cout( blockSize + "\tdata mismatch at " + i + "\n" );
+            return;
+         }
+
+      long allocated = ( long )blocksUsed( fileBytes, blockSize ) * blockSize;
+      SysLib.cout( blockSize + "\t"
+                   + ( fileBytes * 1000L / 1024 / Math.max( writeTime, 1 ) ) + "\t\t"
+                   + ( fileBytes * 1000L / 1024 / Math.max( readTime, 1 ) ) + "\t\t"
+                   + ( allocated - fileBytes ) * 100 / fileBytes + "%\t\t"
+                   + blocksUsed( 100, blockSize ) * blockSize + "\n" );
+   }
+
+   public void run( ) {
+      SysLib.cout( "file size = " + fileBytes + " bytes, inodes of " + inodeSize
+                   + " bytes\n" );
+      SysLib.cout( "block\twrite KB/s\tread KB/s\tspace overhead\t100-byte file\n" );
+      for ( int i = 0; i < blockSizes.length; i++ )
+         measure( blockSizes[i] );
+      // leave a default disk behind
+      SysLib.format( files, Disk.defaultBlockSize, 32 );
+      SysLib.exit( );
+   }
+}
@@ -0,0 +1,18 @@
+// Boots threadOS and starts the Loader.
+// Kernel options are passed as key=value arguments, e.g.
+//    java Boot scheduler=mlfq
+public class Boot
+{
+   static final int OK = 0;
+   static final int ERROR = -1;
+
+   public static void main ( String args[] ) {
+      SysLib.cerr( "threadOS ver 1.0:\n" );
+      SysLib.boot( args );
+      SysLib.cerr( "Type ? for help\n" );
+
+      String[] loader = new String[1];
+      loader[0] = "Loader";
+      SysLib.exec( loader );
+   }
+}
@@ -0,0 +1,662 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+// A disk block cache shared by all threads (SysLib.cread/cwrite/csync/
+// cflush). Its frames are split into stripes, and a block always lives in
+// the stripe its number hashes to. Each stripe has its own lock, a hashed
+// block-to-frame index and its own replacement policy (see CachePolicy),
+// so threads working on blocks of different stripes never meet.
+//
+// A hit looks the index up optimistically, without locking the stripe. The
+// stripe lock is only taken to remap a frame on a miss. Copying data and all
+// disk I/O happen under the frame's own lock, so a miss that waits for the
+// disk blocks only the threads that want that very frame.
+//
+// Frames are numbered within their stripe, and what the cache knows about
+// them is kept in primitive arrays, so even a cache of millions of frames
+// is made of a few objects per stripe. Their data is either one heap array
+// per frame or, off heap, one direct buffer per stripe that the garbage
+// collector never scans or copies.
+//
+// Dirty frames are written back when they are evicted or synced, and, once
+// startFlusher( ) has been called, by a flusher thread in the background
+// (see Flusher). Another background thread can fill the cache with the
+// blocks it held before a reboot (see startPrefetch( )).
+//
+// Lock order: a stripe lock may be held while taking a frame lock, never
+// the other way round (except with tryWriteLock, which doesn't wait).
+public class Cache {
+   private final static int INVALID = -1; // a frame that holds no block
+   private final static int maxStripes = 64;
+   private final static int framesPerStripe = 4; // at least, if possible
+   private final static int maxLocksPerStripe = 1024; // then frames share
+
+   // volatile access to the flag bytes of Stripe
+   private final static VarHandle FLAG
+      = MethodHandles.arrayElementVarHandle( byte[].class );
+
+   // Block number to frame, by linear probing in a table at most half full;
+   // CachePolicy.GhostList maps blocks to its slots with one too. get( )
+   // returns -1 for a block that isn't there.
+   static class Index {
+      private final int[] keys;
+      private final int[] values; // frames, INVALID if the slot is free
+      private final int mask;
+
+      Index( int frames ) {
+         int capacity = 2;
+         while ( capacity < frames * 2 )
+            capacity <<= 1;
+         keys = new int[capacity];
+         values = new int[capacity];
+         Arrays.fill( values, INVALID );
+         mask = capacity - 1;
+      }
+
+      private int slot( int block ) {
+         return hash( block ) & mask;
+      }
+
+      // also called without the stripe lock, so the probe is bounded even
+      // if the table changes underneath
+      int get( int block ) {
+         for ( int i = slot( block ), n = 0; n <= mask; i = ( i + 1 ) & mask, n++ ) {
+            int frame = values[i];
+            if ( frame == INVALID )
+               break;
+            if ( keys[i] == block )
+               return frame;
+         }
+         return INVALID;
+      }
+
+      void put( int block, int frame ) {
+         int i = slot( block );
+         while ( values[i] != INVALID && keys[i] != block )
+            i = ( i + 1 ) & mask;
+         keys[i] = block;
+         values[i] = frame;
+      }
+
+      void remove( int block ) {
+         int i = slot( block );
+         while ( values[i] != INVALID && keys[i] != block )
+            i = ( i + 1 ) & mask;
+         if ( values[i] == INVALID )
+            return;
+         // shift back later entries of the probe run into the hole
+         int hole = i;
+         for ( i = ( i + 1 ) & mask; values[i] != INVALID; i = ( i + 1 ) & mask ) {
+            int home = slot( keys[i] );
+            if ( ( ( i - home ) & mask ) >= ( ( i - hole ) & mask ) ) {
+               keys[hole] = keys[i];
+               values[hole] = values[i];
+               hole = i;
+            }
+         }
+         values[hole] = INVALID;
+      }
+   }
+
+   private static class Stripe implements CachePolicy.Frames {
+      final StampedLock lock = new StampedLock( ); // guards index, policy
+      final int blockSize;
+      final int[] block;           // changed with both locks held
+      final byte[] reference;      // set on every use
+      final byte[] dirty;
+      final long[] dirtiedAt;      // when it last became dirty (ms)
+      final ReentrantLock[] locks; // guard data, dirty; frame % locks.length
+      final byte[][] data;         // the frames' data on the heap, or
+      final ByteBuffer arena;      // off heap, frame after frame
+      final Index index;
+      final CachePolicy policy;
+      int next = 0; // the frame to wait for when all of them are in use
+
+      Stripe( int frameCount, int blockSize, String policyName, boolean offHeap ) {
+         this.blockSize = blockSize;
+         block = new int[frameCount];
+         Arrays.fill( block, INVALID );
+         reference = new byte[frameCount];
+         dirty = new byte[frameCount];
+         dirtiedAt = new long[frameCount];
+         locks = new ReentrantLock[Math.min( frameCount, maxLocksPerStripe )];
+         for ( int i = 0; i < locks.length; i++ )
+            locks[i] = new ReentrantLock( );
+         if ( offHeap ) {
+            if ( ( long )frameCount * blockSize > Integer.MAX_VALUE )
+               throw new IllegalArgumentException( "cache too large" );
+            data = null;
+            arena = ByteBuffer.allocateDirect( frameCount * blockSize );
+         } else {
+            data = new byte[frameCount][blockSize];
+            arena = null;
+         }
+         index = new Index( frameCount );
+         policy = CachePolicy.create( policyName, frameCount );
+         if ( policy == null )
+            throw new IllegalArgumentException( "unknown cache policy "
+                                                + policyName );
+      }
+
+      ReentrantLock lockOf( int frame ) {
+         return locks[frame % locks.length];
+      }
+
+      void setReference( int frame, boolean value ) {
+         FLAG.setVolatile( reference, frame, ( byte )( value ? 1 : 0 ) );
+      }
+
+      void setDirty( int frame, boolean value ) {
+         FLAG.setVolatile( dirty, frame, ( byte )( value ? 1 : 0 ) );
+      }
+
+      // copies the frame's data to buffer (frame locked)
+      void copyOut( int frame, byte[] buffer ) {
+         if ( arena == null )
+            System.arraycopy( data[frame], 0, buffer, 0, blockSize );
+         else
+            arena.get( frame * blockSize, buffer, 0, blockSize );
+      }
+
+      // replaces the frame's data with buffer (frame locked)
+      void copyIn( int frame, byte[] buffer ) {
+         if ( arena == null )
+            System.arraycopy( buffer, 0, data[frame], 0, blockSize );
+         else
+            arena.put( frame * blockSize, buffer, 0, blockSize );
+      }
+
+      public int size( ) {
+         return block.length;
+      }
+
+      public boolean isEmpty( int frame ) {
+         return block[frame] == INVALID;
+      }
+
+      public boolean isReferenced( int frame ) {
+         return ( byte )FLAG.getVolatile( reference, frame ) != 0;
+      }
+
+      public void clearReference( int frame ) {
+         setReference( frame, false );
+      }
+
+      public boolean isDirty( int frame ) {
+         return ( byte )FLAG.getVolatile( dirty, frame ) != 0;
+      }
+
+      public boolean tryClaim( int frame ) {
+         return lockOf( frame ).tryLock( );
+      }
+   }
+
+   private final int blockSize;
+   private final int frameCount;
+   private final Stripe[] stripes;
+   private final LongAdder hits = new LongAdder( );
+   private final LongAdder misses = new LongAdder( );
+   private final LongAdder evictions = new LongAdder( );
+   private final LongAdder writeBacks = new LongAdder( );
+
+   // an off-heap cache moves data between the disk and its frames through
+   // one of these per thread, as the disk only takes arrays
+   private final ThreadLocal<byte[]> staging;
+
+   // write-back thresholds in frames, none until startFlusher( )
+   private final AtomicInteger dirtyCount = new AtomicInteger( );
+   private volatile int dirtyBackground = Integer.MAX_VALUE;
+   private volatile int dirtyLimit = Integer.MAX_VALUE;
+   private volatile long dirtyExpire = Long.MAX_VALUE; // ms
+   private Flusher flusher = null;
+   private final ReentrantLock flusherLock = new ReentrantLock( );
+   private final Condition flusherWork = flusherLock.newCondition( );
+   private Prefetcher prefetcher = null;
+
+   public Cache( int blockSize, int cacheBlocks ) {
+      this( blockSize, cacheBlocks, CachePolicy.names[0] );
+   }
+
+   public Cache( int blockSize, int cacheBlocks, String policy ) {
+      this( blockSize, cacheBlocks, policy, false );
+   }
+
+   // policy is one of CachePolicy.names; an unknown one is an
+   // IllegalArgumentException. offHeap keeps the frames' data in direct
+   // memory, which suits caches of gigabytes.
+   public Cache( int blockSize, int cacheBlocks, String policy, boolean offHeap ) {
+      this.blockSize = blockSize;
+      cacheBlocks = Math.max( cacheBlocks, 1 );
+      frameCount = cacheBlocks;
+      int count = 1;
+      while ( count * 2 <= Math.min( cacheBlocks / framesPerStripe, maxStripes ) )
+         count *= 2;
+      stripes = new Stripe[count];
+      for ( int i = 0; i < count; i++ ) // spread the frames evenly
+         stripes[i] = new Stripe( cacheBlocks / count
+                                  + ( i < cacheBlocks % count ? 1 : 0 ),
+                                  blockSize, policy, offHeap );
+      staging = offHeap ? ThreadLocal.withInitial( () -> new byte[blockSize] )
+                        : null;
+   }
+
+   // # of reads and writes that found their block cached
+   public long getHits( ) {
+      return hits.sum( );
+   }
+
+   // # of reads and writes that had to take over a frame
+   public long getMisses( ) {
+      return misses.sum( );
+   }
+
+   // # of blocks that lost their frame to another block
+   public long getEvictions( ) {
+      return evictions.sum( );
+   }
+
+   // # of dirty frames written back to the disk
+   public long getWriteBacks( ) {
+      return writeBacks.sum( );
+   }
+
+   // # of frames dirty right now
+   public int getDirtyCount( ) {
+      return dirtyCount.get( );
+   }
+
+   private static int hash( int block ) {
+      int h = block * 0x9E3779B9;
+      return h ^ ( h >>> 16 );
+   }
+
+   private Stripe stripeOf( int block ) {
+      return stripes[( hash( block ) >>> 24 ) & ( stripes.length - 1 )];
+   }
+
+   // Returns the frame of blockId, locked. On a miss a clean victim frame
+   // is taken over and, if load is true, blockId is read into it. A prefetch
+   // (demand false) is not counted as a hit or miss.
+   private int acquire( Stripe stripe, int blockId, boolean load,
+                        boolean demand ) {
+      while ( true ) {
+         // a hit needs no stripe lock: the frame lock decides
+         long stamp = stripe.lock.tryOptimisticRead( );
+         int frame = stripe.index.get( blockId );
+         if ( frame != INVALID && stripe.lock.validate( stamp ) ) {
+            stripe.lockOf( frame ).lock( );
+            if ( stripe.block[frame] == blockId ) {
+               if ( demand )
+                  hit( stripe, frame );
+               return frame;
+            }
+            stripe.lockOf( frame ).unlock( ); // evicted meanwhile
+         }
+
+         int victim = INVALID;
+         stamp = stripe.lock.writeLock( );
+         try {
+            frame = stripe.index.get( blockId );
+            if ( frame == INVALID
+                 && ( victim = stripe.policy.victim( stripe, blockId ) ) >= 0 ) {
+               // claimed: locked
+               if ( !stripe.isDirty( victim ) ) {
+                  if ( stripe.block[victim] != INVALID ) {
+                     stripe.index.remove( stripe.block[victim] );
+                     evictions.increment( );
+                  }
+                  stripe.block[victim] = blockId;
+                  stripe.index.put( blockId, victim );
+                  stripe.policy.loaded( victim, blockId );
+               }
+            } else if ( frame == INVALID ) {
+               // every frame is in use: wait for one of them
+               frame = stripe.next;
+               stripe.next = ( stripe.next + 1 ) % stripe.size( );
+            }
+         } finally {
+            stripe.lock.unlockWrite( stamp );
+         }
+
+         if ( victim >= 0 ) { // locked by victim( )
+            if ( stripe.block[victim] == blockId ) { // a miss: the disk works unlocked
+               if ( demand )
+                  misses.increment( );
+               stripe.setReference( victim, true );
+               if ( load )
+                  readFrame( stripe, victim, blockId );
+               return victim;
+            }
+            // a dirty victim is written back while its block is still mapped
+            // to it, so nobody reads that block from the disk too early
+            writeBack( stripe, victim );
+            stripe.lockOf( victim ).unlock( );
+            continue;
+         }
+         stripe.lockOf( frame ).lock( );
+         if ( stripe.block[frame] == blockId ) {
+            if ( demand )
+               hit( stripe, frame ); // or a frame someone else just loaded
+            return frame;
+         }
+         stripe.lockOf( frame ).unlock( ); // evicted meanwhile
+      }
+   }
+
+   // Tells the policy about a hit on a frame (locked). A policy that needs
+   // the stripe lock for hits only hears of it if that lock is free right
+   // now: waiting for it with the frame locked would break the lock order.
+   private void hit( Stripe stripe, int frame ) {
+      hits.increment( );
+      stripe.setReference( frame, true );
+      if ( stripe.policy.lockFreeHits( ) ) {
+         stripe.policy.hit( frame, stripe.block[frame] );
+         return;
+      }
+      long stamp = stripe.lock.tryWriteLock( );
+      if ( stamp != 0 ) {
+         try {
+            stripe.policy.hit( frame, stripe.block[frame] );
+         } finally {
+            stripe.lock.unlockWrite( stamp );
+         }
+      }
+   }
+
+   // reads blockId from the disk into the frame (locked)
+   private void readFrame( Stripe stripe, int frame, int blockId ) {
+      if ( stripe.arena == null ) {
+         SysLib.rawread( blockId, stripe.data[frame] );
+         return;
+      }
+      byte[] buffer = staging.get( );
+      SysLib.rawread( blockId, buffer );
+      stripe.copyIn( frame, buffer );
+   }
+
+   // writes the frame (locked) back if it is dirty
+   private void writeBack( Stripe stripe, int frame ) {
+      if ( stripe.block[frame] != INVALID && stripe.isDirty( frame ) ) {
+         byte[] buffer;
+         if ( stripe.arena == null )
+            buffer = stripe.data[frame];
+         else
+            stripe.copyOut( frame, buffer = staging.get( ) );
+         SysLib.rawwrite( stripe.block[frame], buffer );
+         stripe.setDirty( frame, false );
+         dirtyCount.decrementAndGet( );
+         writeBacks.increment( );
+      }
+   }
+
+   public boolean read( int blockId, byte buffer[] ) {
+      if ( blockId < 0 ) {
+         SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+         return false;
+      }
+      Stripe stripe = stripeOf( blockId );
+      int frame = acquire( stripe, blockId, true, true );
+      try {
+         stripe.copyOut( frame, buffer );
+      } finally {
+         stripe.lockOf( frame ).unlock( );
+      }
+      return true;
+   }
+
+   public boolean write( int blockId, byte buffer[] ) {
+      if ( blockId < 0 ) {
+         SysLib.cerr( "threadOS: a wrong blockId for cwrite\n" );
+         return false;
+      }
+      Stripe stripe = stripeOf( blockId );
+      int frame = acquire( stripe, blockId, false, true ); // the whole block is replaced
+      int dirty = 0;
+      try {
+         stripe.copyIn( frame, buffer );
+         if ( !stripe.isDirty( frame ) ) {
+            stripe.dirtiedAt[frame] = System.currentTimeMillis( );
+            stripe.setDirty( frame, true );
+            dirty = dirtyCount.incrementAndGet( );
+         }
+      } finally {
+         stripe.lockOf( frame ).unlock( );
+      }
+      if ( dirty == dirtyBackground + 1 )
+         wakeFlusher( );
+      if ( dirty > dirtyLimit ) {
+         // throttled: this writer pays for the frames it dirties
+         wakeFlusher( );
+         writeBackDirty( dirtyLimit, Long.MAX_VALUE );
+      }
+      return true;
+   }
+
+   // writes back all dirty frames and keeps them cached
+   public void sync( ) {
+      for ( int s = 0; s < stripes.length; s++ ) {
+         Stripe stripe = stripes[s];
+         for ( int i = 0; i < stripe.size( ); i++ ) {
+            stripe.lockOf( i ).lock( );
+            try {
+               writeBack( stripe, i );
+            } finally {
+               stripe.lockOf( i ).unlock( );
+            }
+         }
+      }
+      SysLib.sync( );
+   }
+
+   // writes back all dirty frames and empties the cache
+   public void flush( ) {
+      drain( );
+      SysLib.sync( );
+   }
+
+   // flush( ) without the sync, which would have the file system write its
+   // SuperBlock: for Kernel.setBlockSize( ), in the middle of a mount or
+   // format
+   public void drain( ) {
+      for ( int s = 0; s < stripes.length; s++ ) {
+         Stripe stripe = stripes[s];
+         long stamp = stripe.lock.writeLock( );
+         try {
+            for ( int i = 0; i < stripe.size( ); i++ ) {
+               stripe.lockOf( i ).lock( );
+               try {
+                  writeBack( stripe, i );
+                  if ( stripe.block[i] != INVALID ) {
+                     stripe.index.remove( stripe.block[i] );
+                     stripe.policy.removed( i );
+                  }
+                  stripe.block[i] = INVALID;
+                  stripe.setReference( i, false );
+               } finally {
+                  stripe.lockOf( i ).unlock( );
+               }
+            }
+         } finally {
+            stripe.lock.unlockWrite( stamp );
+         }
+      }
+   }
+
+   // Fills blocks with the numbers of cached blocks, those referenced since
+   // the policy last looked first, and returns how many there are
+   public int hotBlocks( int[] blocks ) {
+      int n = 0;
+      for ( int pass = 0; pass < 2; pass++ )
+         for ( int s = 0; s < stripes.length; s++ ) {
+            Stripe stripe = stripes[s];
+            for ( int i = 0; i < stripe.size( ) && n < blocks.length; i++ ) {
+               int block = stripe.block[i]; // a snapshot is good enough
+               if ( block != INVALID && stripe.isReferenced( i ) == ( pass == 0 ) )
+                  blocks[n++] = block;
+            }
+         }
+      return n;
+   }
+
+   // Starts reading the first count blocks into the cache in the
+   // background, in ascending block order, without counting them as
+   // misses. It gives up after millis, and never reads more blocks than
+   // the cache has frames.
+   public void startPrefetch( int[] blocks, int count, long millis ) {
+      if ( prefetcher != null || count <= 0 )
+         return;
+      int[] order = Arrays.copyOf( blocks, Math.min( count, frameCount ) );
+      Arrays.sort( order );
+      prefetcher = new Prefetcher( order, System.currentTimeMillis( ) + millis );
+      prefetcher.start( );
+   }
+
+   // Stops the prefetcher once its current read is done
+   public void stopPrefetch( ) {
+      if ( prefetcher == null )
+         return;
+      prefetcher.stopped = true;
+      try {
+         prefetcher.join( );
+      } catch ( InterruptedException e ) {
+      }
+      prefetcher = null;
+   }
+
+   // Writes back dirty frames that became dirty no later than dirtiedBefore,
+   // in ascending block order to keep the disk arm moving one way, until no
+   // more than target frames are dirty. Frames in use are skipped.
+   private void writeBackDirty( int target, long dirtiedBefore ) {
+      // block << 32 | stripe << 26 | frame, for the dirty frames found
+      long[] order = new long[Math.max( Math.min( dirtyCount.get( ), frameCount ), 0 )];
+      int n = 0;
+      for ( int s = 0; s < stripes.length && n < order.length; s++ ) {
+         Stripe stripe = stripes[s];
+         for ( int i = 0; i < stripe.size( ) && n < order.length; i++ )
+            if ( stripe.isDirty( i ) && stripe.dirtiedAt[i] <= dirtiedBefore )
+               order[n++] = ( long )stripe.block[i] << 32 | ( long )s << 26 | i;
+      }
+      Arrays.sort( order, 0, n );
+      for ( int i = 0; i < n && dirtyCount.get( ) > target; i++ ) {
+         Stripe stripe = stripes[( int )( order[i] >>> 26 ) & ( maxStripes - 1 )];
+         int frame = ( int )order[i] & ( ( 1 << 26 ) - 1 );
+         if ( !stripe.lockOf( frame ).tryLock( ) )
+            continue;
+         try {
+            if ( stripe.block[frame] == ( int )( order[i] >>> 32 ) )
+               writeBack( stripe, frame );
+         } finally {
+            stripe.lockOf( frame ).unlock( );
+         }
+      }
+   }
+
+   private void wakeFlusher( ) {
+      flusherLock.lock( );
+      try {
+         flusherWork.signal( );
+      } finally {
+         flusherLock.unlock( );
+      }
+   }
+
+   // Starts writing dirty frames back in the background. The flusher wakes
+   // when more than backgroundPercent of the frames are dirty and writes
+   // back until they are not, and every expireMillis / 2 to write back the
+   // frames dirty for longer than expireMillis. A write that leaves more
+   // than limitPercent of the frames dirty writes some back itself before
+   // it returns.
+   public void startFlusher( int backgroundPercent, int limitPercent,
+                             long expireMillis ) {
+      if ( flusher != null )
+         return;
+      dirtyBackground = ( int )( ( long )frameCount * backgroundPercent / 100 );
+      dirtyLimit = Math.max( ( int )( ( long )frameCount * limitPercent / 100 ),
+                             dirtyBackground );
+      dirtyExpire = Math.max( expireMillis, 1 );
+      flusher = new Flusher( );
+      flusher.start( );
+   }
+
+   // Stops the flusher, once its write-backs are done, and the throttling
+   public void stopFlusher( ) {
+      if ( flusher == null )
+         return;
+      flusherLock.lock( );
+      try {
+         flusher.stopped = true;
+         flusherWork.signal( );
+      } finally {
+         flusherLock.unlock( );
+      }
+      try {
+         flusher.join( );
+      } catch ( InterruptedException e ) {
+      }
+      flusher = null;
+      dirtyBackground = Integer.MAX_VALUE;
+      dirtyLimit = Integer.MAX_VALUE;
+      dirtyExpire = Long.MAX_VALUE;
+   }
+
+   private class Flusher extends Thread {
+      boolean stopped = false; // guarded by flusherLock
+
+      Flusher( ) {
+         super( "cache flusher" );
+         setDaemon( true );
+      }
+
+      public void run( ) {
+         while ( true ) {
+            flusherLock.lock( );
+            try {
+               if ( !stopped && dirtyCount.get( ) <= dirtyBackground )
+                  flusherWork.await( Math.max( dirtyExpire / 2, 1 ),
+                                     TimeUnit.MILLISECONDS );
+               if ( stopped )
+                  return;
+            } catch ( InterruptedException e ) {
+               return;
+            } finally {
+               flusherLock.unlock( );
+            }
+            if ( dirtyCount.get( ) > dirtyBackground )
+               writeBackDirty( dirtyBackground, Long.MAX_VALUE );
+            writeBackDirty( 0, System.currentTimeMillis( ) - dirtyExpire );
+         }
+      }
+   }
+
+   private class Prefetcher extends Thread {
+      final int[] blocks;  // in ascending order
+      final long deadline; // ms
+      volatile boolean stopped = false;
+
+      Prefetcher( int[] blocks, long deadline ) {
+         super( "cache prefetcher" );
+         setDaemon( true );
+         this.blocks = blocks;
+         this.deadline = deadline;
+      }
+
+      public void run( ) {
+         for ( int i = 0; i < blocks.length && !stopped
+                  && System.currentTimeMillis( ) < deadline; i++ ) {
+            Stripe stripe = stripeOf( blocks[i] );
+            if ( stripe.index.get( blocks[i] ) != INVALID )
+               continue; // already cached
+            int frame = acquire( stripe, blocks[i], true, false );
+            stripe.lockOf( frame ).unlock( );
+         }
+      }
+   }
+}
@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// A multi-threaded Test4: several programs share the cache at once.
+//  1. hits: 1, 2, 4, ... threads cread a few cached blocks
+//  2. hits during misses: the same, while one more thread creads blocks
+//     that are never cached, so each of its reads waits for the disk
+// Each case runs for a fixed time and reports cache operations per second.
+// Usage: l CacheBench [max threads] [milliseconds per case]
+public class CacheBench extends Thread {
+   private final static int hotBlocks = 2;     // blocks 1.. that stay cached
+   private final static int coldFirst = 100;   // blocks read by the missing thread
+   private final static int coldBlocks = 800;
+
+   // counted by the children, read by the parent once they have exited
+   private final static AtomicLong hotOps = new AtomicLong( );
+   private final static AtomicLong coldOps = new AtomicLong( );
+
+   private int threads = 4;
+   private int millis = 2000;
+   private String childMode = null;
+
+   public CacheBench( ) {
+   }
+
+   public CacheBench( String args[] ) {
+      if ( args.length > 0 && args[0].startsWith( "child" ) ) {
+         // spawned by the benchmark itself
+         childMode = args[0];
+         millis = Integer.parseInt( args[1] );
+         return;
+      }
+      if ( args.length > 0 )
+         threads = Integer.parseInt( args[0] );
+      if ( args.length > 1 )
+         millis = Integer.parseInt( args[1] );
+   }
+
+   private void runChild( ) {
+      byte[] buffer = new byte[SysLib.blockSize( )];
+      long deadline = System.currentTimeMillis( ) + millis;
+      long ops = 0;
+      if ( childMode.equals( "child-hot" ) ) {
+         for ( int i = 0; System.currentTimeMillis( ) < deadline; i++, ops++ )
+            SysLib.cread( 1 + i % hotBlocks, buffer );
+         hotOps.addAndGet( ops );
+      } else {
+         for ( int i = 0; System.currentTimeMillis( ) < deadline; i++, ops++ )
+            SysLib.cread( coldFirst + i % coldBlocks, buffer );
+         coldOps.addAndGet( ops );
+      }
+   }
+
+   // runs hot (and cold) children together and returns when all have exited
+   private void runCase( int hot, int cold ) {
+      hotOps.set( 0 );
+      coldOps.set( 0 );
+      String[] hotArgs = { "CacheBench", "child-hot", "" + millis };
+      String[] coldArgs = { "CacheBench", "child-cold", "" + millis };
+      for ( int i = 0; i < cold; i++ )
+         SysLib.exec( coldArgs );
+      for ( int i = 0; i < hot; i++ )
+         SysLib.exec( hotArgs );
+      for ( int i = 0; i < hot + cold; i++ )
+         SysLib.join( );
+   }
+
+   private long perSecond( long ops ) {
+      return ops * 1000 / millis;
+   }
+
+   public void run( ) {
+      if ( childMode != null ) {
+         runChild( );
+         SysLib.exit( );
+         return;
+      }
+      byte[] buffer = new byte[SysLib.blockSize( )];
+      SysLib.flush( );
+      for ( int i = 0; i < hotBlocks; i++ )
+         SysLib.cread( 1 + i, buffer ); // warm up
+
+      for ( int t = 1; t <= threads; t *= 2 ) {
+         runCase( t, 0 );
+         SysLib.cout( "hits, " + t + " threads:                 "
+                      + perSecond( hotOps.get( ) ) + " ops/sec\n" );
+      }
+      for ( int t = 1; t <= threads; t *= 2 ) {
+         runCase( t, 1 );
+         SysLib.cout( "hits, " + t + " threads + 1 missing:     "
+                      + perSecond( hotOps.get( ) ) + " ops/sec (misses: "
+                      + perSecond( coldOps.get( ) ) + " ops/sec)\n" );
+      }
+      SysLib.flush( );
+      SysLib.exit( );
+   }
+}
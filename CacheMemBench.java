@@ -0,0 +1,89 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// What a very large cache costs the garbage collector. A private cache of
+// the given size is filled with blocks, then read at random for a while by
+// a program that also allocates short-lived garbage, as programs do. Only
+// 7/8 of the frames are used, so that no stripe overflows and nothing is
+// written back: the blocks need not exist on the disk.
+// Reports the heap in use and the collections during the read phase.
+// Usage: l CacheMemBench frames heap|offheap [seconds]
+// (give the JVM room: -Xmx for heap, -XX:MaxDirectMemorySize for offheap)
+public class CacheMemBench extends Thread {
+   private int frames;
+   private int blocks; // the blocks cached
+   private boolean offHeap;
+   private int seconds = 20;
+
+   public CacheMemBench( String args[] ) {
+      frames = Integer.parseInt( args[0] );
+      blocks = frames - frames / 8;
+      offHeap = args[1].equals( "offheap" );
+      if ( args.length > 2 )
+         seconds = Integer.parseInt( args[2] );
+   }
+
+   private long gcCount( ) {
+      long count = 0;
+      for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans( ) )
+         count += Math.max( gc.getCollectionCount( ), 0 );
+      return count;
+   }
+
+   private long gcMillis( ) {
+      long millis = 0;
+      for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans( ) )
+         millis += Math.max( gc.getCollectionTime( ), 0 );
+      return millis;
+   }
+
+   public void run( ) {
+      int blockSize = SysLib.blockSize( );
+      byte[] buffer = new byte[blockSize];
+      MemoryMXBean memory = ManagementFactory.getMemoryMXBean( );
+
+      long start = System.currentTimeMillis( );
+      Cache cache = new Cache( blockSize, frames, CachePolicy.names[0], offHeap );
+      for ( int block = 0; block < blocks; block++ ) {
+         buffer[0] = ( byte )block;
+         cache.write( block, buffer );
+      }
+      SysLib.cout( ( offHeap ? "offheap" : "heap" ) + ", " + frames + " frames ("
+                   + ( long )frames * blockSize / ( 1 << 20 ) + " MB): filled in "
+                   + ( System.currentTimeMillis( ) - start ) + " ms\n" );
+
+      System.gc( );
+      long heap = memory.getHeapMemoryUsage( ).getUsed( );
+      long count = gcCount( );
+      long millis = gcMillis( );
+      Random rand = new Random( 1 );
+      long reads = 0;
+      long deadline = System.currentTimeMillis( ) + seconds * 1000L;
+      List<byte[]> garbage = new ArrayList<byte[]>( );
+      while ( System.currentTimeMillis( ) < deadline ) {
+         for ( int i = 0; i < 1000; i++, reads++ ) {
+            int block = rand.nextInt( blocks );
+            cache.read( block, buffer );
+            if ( buffer[0] != ( byte )block ) {
+               SysLib.cerr( "ERROR\n" );
+               SysLib.exit( );
+               return;
+            }
+            garbage.add( new byte[256] );
+         }
+         if ( garbage.size( ) > 100000 )
+            garbage.clear( );
+      }
+      count = gcCount( ) - count;
+      millis = gcMillis( ) - millis;
+      SysLib.cout( "heap in use " + heap / ( 1 << 20 ) + " MB, " + reads / seconds
+                   + " reads/sec, " + count + " collections, " + millis
+                   + " ms in total, " + millis / Math.max( count, 1 )
+                   + " ms on average\n" );
+      SysLib.exit( );
+   }
+}
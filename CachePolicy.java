@@ -0,0 +1,219 @@
+// A cache replacement policy: decides which frame gives up its block when
+// the Cache misses. Cache keeps one policy object per stripe, for the
+// frames of that stripe, and calls it with the stripe locked.
+//
+// Hits are the exception. A hit doesn't lock the stripe, so hit( ) is
+// called without the lock if lockFreeHits( ) is true. Otherwise it is
+// only called when the stripe lock happens to be free, which means that
+// under contention a few hits go unrecorded.
+public interface CachePolicy {
+   // the names create( ) knows, the default first
+   String[] names = { "clock", "esc", "lru", "2q", "arc" };
+
+   // The frames of one stripe, numbered 0 .. size( ) - 1
+   interface Frames {
+      int size( );
+      boolean isEmpty( int frame );      // holds no block
+      boolean isReferenced( int frame ); // used since its bit was cleared
+      void clearReference( int frame );
+      boolean isDirty( int frame );
+      boolean tryClaim( int frame );     // locks it unless it is in use
+   }
+
+   // true if hit( ) may be called without the stripe lock
+   boolean lockFreeHits( );
+
+   // block, which lives in frame, was used again. The frame may hold
+   // another block by the time this is called; that call is ignored.
+   void hit( int frame, int block );
+
+   // Picks the frame that block is to replace and claims it, or returns -1
+   // if no frame can be claimed. Cache may give a dirty frame back to write
+   // it out first and then ask again.
+   int victim( Frames frames, int block );
+
+   // block now lives in frame, which victim( ) picked
+   void loaded( int frame, int block );
+
+   // frame was emptied
+   void removed( int frame );
+
+   // a new policy for a stripe of size frames, or null for an unknown name
+   static CachePolicy create( String name, int size ) {
+      if ( name.equals( "clock" ) )
+         return new ClockPolicy( size );
+      if ( name.equals( "esc" ) )
+         return new EnhancedClockPolicy( size );
+      if ( name.equals( "lru" ) )
+         return new LruPolicy( size );
+      if ( name.equals( "2q" ) )
+         return new TwoQueuePolicy( size );
+      if ( name.equals( "arc" ) )
+         return new ArcPolicy( size );
+      return null;
+   }
+
+   // Frames in recency order, most recent first, linked through arrays so
+   // that moving one allocates nothing. A frame is in a list or not.
+   class FrameList {
+      private final int[] prev;
+      private final int[] next;
+      private final boolean[] member;
+      private int head = -1;
+      private int tail = -1;
+      private int count = 0;
+
+      FrameList( int size ) {
+         prev = new int[size];
+         next = new int[size];
+         member = new boolean[size];
+      }
+
+      int size( ) {
+         return count;
+      }
+
+      boolean contains( int frame ) {
+         return member[frame];
+      }
+
+      int last( ) { // the least recent, or -1
+         return tail;
+      }
+
+      int previous( int frame ) { // the next more recent, or -1
+         return prev[frame];
+      }
+
+      void addFirst( int frame ) {
+         prev[frame] = -1;
+         next[frame] = head;
+         if ( head >= 0 )
+            prev[head] = frame;
+         else
+            tail = frame;
+         head = frame;
+         member[frame] = true;
+         count++;
+      }
+
+      void addLast( int frame ) {
+         next[frame] = -1;
+         prev[frame] = tail;
+         if ( tail >= 0 )
+            next[tail] = frame;
+         else
+            head = frame;
+         tail = frame;
+         member[frame] = true;
+         count++;
+      }
+
+      void remove( int frame ) {
+         if ( !member[frame] )
+            return;
+         if ( prev[frame] >= 0 )
+            next[prev[frame]] = next[frame];
+         else
+            head = next[frame];
+         if ( next[frame] >= 0 )
+            prev[next[frame]] = prev[frame];
+         else
+            tail = prev[frame];
+         member[frame] = false;
+         count--;
+      }
+
+      void moveToFront( int frame ) {
+         remove( frame );
+         addFirst( frame );
+      }
+
+      // claims the least recent frame that can be claimed, or returns -1
+      int claimLast( Frames frames ) {
+         for ( int f = tail; f >= 0; f = prev[f] )
+            if ( frames.tryClaim( f ) )
+               return f;
+         return -1;
+      }
+   }
+
+   // Numbers of recently evicted blocks, most recent first. They are kept
+   // in slots linked into a list, with an index from block to slot, so
+   // that every operation takes constant time however long the list is.
+   class GhostList {
+      private final int[] blocks; // by slot
+      private final int[] prev;   // by slot: the next more recent, or -1
+      private final int[] next;   // by slot: the next less recent, or -1;
+                                  // for a free slot, the next free one
+      private final Cache.Index slots; // block to slot
+      private int head = -1;
+      private int tail = -1;
+      private int free = 0; // the first free slot, or -1
+      private int count = 0;
+
+      GhostList( int capacity ) {
+         capacity = Math.max( capacity, 1 );
+         blocks = new int[capacity];
+         prev = new int[capacity];
+         next = new int[capacity];
+         for ( int i = 0; i < capacity; i++ )
+            next[i] = ( i + 1 < capacity ) ? i + 1 : -1;
+         slots = new Cache.Index( capacity );
+      }
+
+      int size( ) {
+         return count;
+      }
+
+      boolean contains( int block ) {
+         return slots.get( block ) >= 0;
+      }
+
+      void remove( int block ) {
+         int slot = slots.get( block );
+         if ( slot >= 0 )
+            drop( slot );
+      }
+
+      void removeLast( ) {
+         if ( tail >= 0 )
+            drop( tail );
+      }
+
+      // remembers block, forgetting the oldest one if full
+      void addFirst( int block ) {
+         remove( block );
+         if ( count == blocks.length )
+            removeLast( );
+         int slot = free;
+         free = next[slot];
+         blocks[slot] = block;
+         prev[slot] = -1;
+         next[slot] = head;
+         if ( head >= 0 )
+            prev[head] = slot;
+         else
+            tail = slot;
+         head = slot;
+         slots.put( block, slot );
+         count++;
+      }
+
+      // unlinks slot and frees it
+      private void drop( int slot ) {
+         if ( prev[slot] >= 0 )
+            next[prev[slot]] = next[slot];
+         else
+            head = next[slot];
+         if ( next[slot] >= 0 )
+            prev[next[slot]] = prev[slot];
+         else
+            tail = prev[slot];
+         slots.remove( blocks[slot] );
+         next[slot] = free;
+         free = slot;
+         count--;
+      }
+   }
+}
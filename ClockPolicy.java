@@ -0,0 +1,39 @@
+// Second chance (the clock algorithm): the hand sweeps the frames and takes
+// the first one that wasn't used since the hand last passed, clearing the
+// reference bits on the way. Hits only set a reference bit, which Cache
+// does itself, so they never need the stripe lock.
+public class ClockPolicy implements CachePolicy {
+   private final int size;
+   private int hand = 0; // the next frame to consider
+
+   public ClockPolicy( int size ) {
+      this.size = size;
+   }
+
+   public boolean lockFreeHits( ) {
+      return true;
+   }
+
+   public void hit( int frame, int block ) {
+   }
+
+   public int victim( Frames frames, int block ) {
+      for ( int i = 0; i < 2 * size; i++ ) {
+         int frame = hand;
+         hand = ( hand + 1 ) % size;
+         if ( !frames.isEmpty( frame ) && frames.isReferenced( frame ) ) {
+            frames.clearReference( frame ); // give it a second chance
+            continue;
+         }
+         if ( frames.tryClaim( frame ) )
+            return frame;
+      }
+      return -1;
+   }
+
+   public void loaded( int frame, int block ) {
+   }
+
+   public void removed( int frame ) {
+   }
+}
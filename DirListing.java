@@ -0,0 +1,51 @@
+// A page of a directory listing, which SysLib.readdir( ) fills in: up to
+// capacity files, each with its name, inode number, size in bytes and
+// inode flag (see Inode). The kernel takes them from the Directory and the
+// inode sizes it keeps in memory, without opening any file or reading the
+// disk.
+//
+// The listing remembers where its page ended, so calling readdir( ) again
+// with it returns the next page; it is done once readdir( ) returns 0.
+// Files created or deleted meanwhile may or may not show up.
+public class DirListing {
+   String[] names;
+   int[] iNumbers;
+   int[] sizes;
+   short[] flags;
+   int count;  // files on this page
+   int cursor; // the inode number the next page starts at
+
+   public DirListing( int capacity ) {
+      names = new String[capacity];
+      iNumbers = new int[capacity];
+      sizes = new int[capacity];
+      flags = new short[capacity];
+   }
+
+   // # of files on this page
+   public int count( ) {
+      return count;
+   }
+
+   public String name( int i ) {
+      return names[i];
+   }
+
+   public int iNumber( int i ) {
+      return iNumbers[i];
+   }
+
+   public int size( int i ) {
+      return sizes[i];
+   }
+
+   public short flag( int i ) {
+      return flags[i];
+   }
+
+   // starts the listing over from its first page
+   public void rewind( ) {
+      count = 0;
+      cursor = 0;
+   }
+}
@@ -17,7 +17,7 @@ public class Directory {
         root.getChars(0, fsize[0], fnames[0], 0); // fnames[0] includes "/"
     }
 
-    public void bytes2directory(byte data[]) {
+    public synchronized void bytes2directory(byte data[]) {
         // assumes data[] received directory information from disk
         int offset = 0;
         for (int i = 0; i < fsize.length; i++) {
@@ -33,7 +33,7 @@ public class Directory {
         }
     }
 
-    public byte[] directory2bytes() {
+    public synchronized byte[] directory2bytes() {
         // converts and return Directory information into a plain byte array
         // this byte array will be written back to disk
         // note: only meaningfull directory information should be converted
@@ -53,7 +53,7 @@ public class Directory {
         return ret;
     }
 
-    public short ialloc(String filename) {
+    public synchronized short ialloc(String filename) {
         // filename is the one of a file to be created.
         for (short i = 0; i < fsize.length; i++) {
             // no file name defined
@@ -68,8 +68,8 @@ public class Directory {
     }
 
     // deallocates this inumber (inode number)
-    public boolean ifree(short iNumber) {
-        if (iNumber < maxChars && fsize[iNumber] > 0) {
+    public synchronized boolean ifree(short iNumber) {
+        if (iNumber >= 0 && iNumber < fsize.length && fsize[iNumber] > 0) {
             fsize[iNumber] = 0;
             // returns true if succeeded
             return true;
@@ -78,7 +78,33 @@ public class Directory {
         return false;
     }
 
-    public short namei(String filename) {
+    // the name of this inumber's file, or null if it has no entry
+    public synchronized String fileName(short iNumber) {
+        if (iNumber < 0 || iNumber >= fsize.length || fsize[iNumber] == 0)
+            return null;
+        return new String(fnames[iNumber], 0, fsize[iNumber]);
+    }
+
+    // gives this inumber the entry filename, replacing the one it had
+    public synchronized void link(short iNumber, String filename) {
+        fsize[iNumber] = Math.min(filename.length(), maxChars);
+        filename.getChars(0, fsize[iNumber], fnames[iNumber], 0);
+    }
+
+    // the files with inumbers from from on, up to max of them ("/" is not
+    // one): their inumbers and names, in inumber order; returns how many
+    public synchronized int list(int from, int max, int[] iNumbers, String[] names) {
+        int n = 0;
+        for (int i = Math.max(from, 1); i < fsize.length && n < max; i++) {
+            if (fsize[i] == 0)
+                continue;
+            iNumbers[n] = i;
+            names[n++] = new String(fnames[i], 0, fsize[i]);
+        }
+        return n;
+    }
+
+    public synchronized short namei(String filename) {
         for (short i = 0; i < fsize.length; i++) {
             if (fsize[i] == filename.length()) {
                 String tempStr = new String(fnames[i], 0, fsize[i]);
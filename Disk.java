@@ -0,0 +1,225 @@
+import java.io.*;
+
+public class Disk extends Thread {
+   // Block geometry: the block size is chosen when the disk is formatted
+   // and recorded in the SuperBlock, so it can be anywhere in this range
+   public final static int defaultBlockSize = 512;
+   public final static int minBlockSize = 512;
+   public final static int maxBlockSize = 65536;
+
+   private final int trackSize = 10;
+   private final int transferTime = 20;
+   private final int delayPerTrack = 1;
+   private int blockSize;   // # of bytes in 1 block
+   private int diskSize;    // # of blocks at the current block size
+   private byte data[];     // the disk image (capacity is fixed in bytes)
+   private int command;
+   private final int IDLE = 0;
+   private final int READ = 1;
+   private final int WRITE = 2;
+   private final int SYNC = 3;
+   private boolean readyBuffer;
+   private byte buffer[];
+   private int currentBlockId;
+   private int targetBlockId;
+
+   // An in-memory disk has no seeks and no DISK file: a command is done as
+   // soon as it is accepted, and sync does nothing. It stands in for the
+   // disk when only the kernel's own overhead is to be measured.
+   private final boolean inMemory;
+
+   public Disk( int totalBlocks ) {
+      this( totalBlocks, defaultBlockSize );
+   }
+
+   public Disk( int totalBlocks, int size ) {
+      this( totalBlocks, size, false );
+   }
+
+   public Disk( int totalBlocks, int size, boolean inMemory ) {
+      this.inMemory = inMemory;
+      blockSize = isValidBlockSize( size ) ? size : defaultBlockSize;
+      diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
+      data = new byte[diskSize * blockSize];
+      command = IDLE;
+      readyBuffer = false;
+      buffer = null;
+      currentBlockId = 0;
+      targetBlockId = 0;
+      if ( inMemory )
+         return; // starts out blank
+      try {
+         FileInputStream ifstream = new FileInputStream( "DISK" );
+         int readableSize = ( ifstream.available( ) < data.length ) ?
+            ifstream.available( ) : data.length;
+         ifstream.read( data, 0, readableSize );
+         ifstream.close( );
+      } catch ( FileNotFoundException e ) {
+         SysLib.cerr( "threadOS: DISK created\n" );
+      } catch ( IOException e ) {
+         SysLib.cerr( e.toString( ) + "\n" );
+      }
+   }
+
+   // a block size must be a power of two between minBlockSize and maxBlockSize
+   public static boolean isValidBlockSize( int size ) {
+      return size >= minBlockSize && size <= maxBlockSize
+         && ( size & ( size - 1 ) ) == 0;
+   }
+
+   public synchronized int getBlockSize( ) {
+      return blockSize;
+   }
+
+   public synchronized int getDiskSize( ) {
+      return diskSize;
+   }
+
+   // re-addresses the disk image with a new block size. The capacity in
+   // bytes stays the same, so the number of blocks changes accordingly.
+   // Only allowed while no command is in flight.
+   public synchronized boolean setBlockSize( int size ) {
+      if ( !isValidBlockSize( size ) || size > data.length )
+         return false;
+      if ( command != IDLE || readyBuffer == true )
+         return false;
+      blockSize = size;
+      diskSize = data.length / blockSize;
+      currentBlockId = 0;
+      return true;
+   }
+
+   public synchronized boolean read( int blockId, byte buffer[] ) {
+      if ( blockId < 0 || blockId >= diskSize ) {
+         SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+         return false;
+      }
+      if ( command == IDLE && readyBuffer == false ) {
+         Metrics.diskReads.increment( );
+         if ( inMemory ) {
+            System.arraycopy( data, blockId * blockSize, buffer, 0, blockSize );
+            readyBuffer = true;
+            return true;
+         }
+         this.buffer = buffer;
+         targetBlockId = blockId;
+         command = READ;
+         notify( );
+         return true;
+      } else
+         return false;
+   }
+
+   public synchronized boolean write( int blockId, byte buffer[] ) {
+      if ( blockId < 0 || blockId >= diskSize ) {
+         SysLib.cerr( "threadOS: a wrong blockId for write\n" );
+         return false;
+      }
+      if ( command == IDLE && readyBuffer == false ) {
+         Metrics.diskWrites.increment( );
+         if ( inMemory ) {
+            System.arraycopy( buffer, 0, data, blockId * blockSize, blockSize );
+            readyBuffer = true;
+            return true;
+         }
+         this.buffer = buffer;
+         targetBlockId = blockId;
+         command = WRITE;
+         notify( );
+         return true;
+      } else
+         return false;
+   }
+
+   public synchronized boolean sync( ) {
+      if ( command == IDLE && readyBuffer == false ) {
+         Metrics.diskSyncs.increment( );
+         if ( inMemory ) {
+            readyBuffer = true;
+            return true;
+         }
+         command = SYNC;
+         notify( );
+         return true;
+      } else
+         return false;
+   }
+
+   public synchronized boolean testAndResetReady( ) {
+      if ( command == IDLE && readyBuffer == true ) {
+         readyBuffer = false;
+         return true;
+      } else
+         return false;
+   }
+
+   public synchronized boolean testReady( ) {
+      if ( command == IDLE && readyBuffer == true )
+         return true;
+      else
+         return false;
+   }
+
+   private synchronized void waitCommand( ) {
+      while ( command == IDLE ) {
+         try {
+            wait( );
+         } catch ( InterruptedException e ) {
+            SysLib.cerr( e.toString( ) + "\n" );
+         }
+         readyBuffer = false;
+      }
+   }
+
+   private void seek( ) {
+      int tracks = Math.abs( targetBlockId / trackSize - currentBlockId / trackSize );
+      Metrics.diskSeekTracks.record( tracks );
+      int delay = transferTime + delayPerTrack * tracks;
+      try {
+         Thread.sleep( delay );
+      } catch ( InterruptedException e ) {
+         SysLib.cerr( e.toString( ) + "\n" );
+      }
+      currentBlockId = targetBlockId;
+   }
+
+   private synchronized void finishCommand( ) {
+      command = IDLE;
+      readyBuffer = true;
+   }
+
+   public void run( ) {
+      if ( inMemory )
+         return; // nothing to wait for
+      while ( true ) {
+         waitCommand( );
+         seek( );
+         // blockSize only changes while the disk is idle
+         switch( command ) {
+            case READ:
+               System.arraycopy( data, targetBlockId * blockSize, buffer, 0,
+                                 blockSize );
+               break;
+            case WRITE:
+               System.arraycopy( buffer, 0, data, targetBlockId * blockSize,
+                                 blockSize );
+               break;
+            case SYNC:
+               try {
+                  FileOutputStream ofstream = new FileOutputStream( "DISK" );
+                  ofstream.write( data );
+                  ofstream.close( );
+               } catch ( FileNotFoundException e ) {
+                  SysLib.cerr( e.toString( ) );
+               } catch ( IOException e ) {
+                  SysLib.cerr( e.toString( ) );
+               }
+               break;
+         }
+         finishCommand( );
+         // interrupt outside the monitor: the kernel tests the disk while
+         // holding a wait-queue lock, so the lock order must be one way
+         SysLib.disk( ); // a disk interrupt
+      }
+   }
+}
@@ -0,0 +1,53 @@
+// Enhanced second chance: like the clock, but it ranks frames by their
+// (reference, dirty) bits and prefers a victim that needs no write-back:
+//   1. sweep for (0, 0) without touching anything
+//   2. sweep for (0, 1), clearing reference bits on the way
+//   3. repeat once, now that every reference bit is clear
+public class EnhancedClockPolicy implements CachePolicy {
+   private final int size;
+   private int hand = 0; // where the next sweep starts
+
+   public EnhancedClockPolicy( int size ) {
+      this.size = size;
+   }
+
+   public boolean lockFreeHits( ) {
+      return true;
+   }
+
+   public void hit( int frame, int block ) {
+   }
+
+   private int claim( Frames frames, int frame ) {
+      if ( !frames.tryClaim( frame ) )
+         return -1;
+      hand = ( frame + 1 ) % size;
+      return frame;
+   }
+
+   public int victim( Frames frames, int block ) {
+      for ( int round = 0; round < 2; round++ ) {
+         for ( int i = 0; i < size; i++ ) {
+            int frame = ( hand + i ) % size;
+            if ( frames.isEmpty( frame ) || !frames.isReferenced( frame )
+                 && !frames.isDirty( frame ) )
+               if ( claim( frames, frame ) >= 0 )
+                  return frame;
+         }
+         for ( int i = 0; i < size; i++ ) {
+            int frame = ( hand + i ) % size;
+            if ( frames.isReferenced( frame ) )
+               frames.clearReference( frame );
+            else if ( claim( frames, frame ) >= 0 )
+               return frame;
+         }
+      }
+      return -1;
+   }
+
+   public void loaded( int frame, int block ) {
+   }
+
+   public void removed( int frame ) {
+   }
+}
@@ -0,0 +1,48 @@
+import java.util.Arrays;
+
+// Measures exec itself: how long SysLib.exec takes to create a program,
+// and how many short-lived programs can be run one after another.
+// Usage: l ExecBench [iterations]
+// Boot with preload=ExecBench to take the first exec's class loading out
+// of the numbers, and compare spawnlog=verbose against the default.
+public class ExecBench extends Thread {
+   private int iterations = 2000;
+   private boolean child = false;
+
+   public ExecBench( ) {
+      child = true; // run without arguments by the benchmark itself
+   }
+
+   public ExecBench( String args[] ) {
+      if ( args.length > 0 )
+         iterations = Integer.parseInt( args[0] );
+   }
+
+   public void run( ) {
+      if ( child ) {
+         SysLib.exit( );
+         return;
+      }
+      String[] args = { "ExecBench" };
+      long[] micros = new long[iterations];
+
+      long start = System.nanoTime( );
+      for ( int i = 0; i < iterations; i++ ) {
+         long execStart = System.nanoTime( );
+         SysLib.exec( args );
+         micros[i] = ( System.nanoTime( ) - execStart ) / 1000;
+         SysLib.join( );
+      }
+      long millis = ( System.nanoTime( ) - start ) / 1000000;
+
+      long first = micros[0];
+      Arrays.sort( micros );
+      SysLib.cout( "exec: first = " + first + " us, p50 = "
+                   + micros[iterations / 2] + " us, p99 = "
+                   + micros[( iterations * 99 ) / 100] + " us\n" );
+      SysLib.cout( iterations + " exec + join in " + millis + " ms ("
+                   + ( iterations * 1000L / Math.max( millis, 1 ) )
+                   + " programs/sec)\n" );
+      SysLib.exit( );
+   }
+}
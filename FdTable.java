@@ -0,0 +1,150 @@
+import java.util.Arrays;
+
+// A thread's file descriptors: the FileTableEntry behind each fd from 3 up,
+// since 0, 1 and 2 are the console's. The table starts at 64 fds and
+// doubles whenever they are all open, up to maxFds. The lowest free fd is
+// found through two levels of bitmaps, a bit per fd and a bit per word of
+// those, so taking one costs a few numberOfTrailingZeros() calls however
+// many fds are open.
+//
+// A spawned thread shares its parent's table rather than copying it (see
+// TCB.inheritFds), and whichever thread next opens or closes a file first
+// gets a copy of its own (copy on write). The table counts once in the
+// FileTableEntry.count of each entry, for all the threads sharing it, and
+// the copy adds one more.
+public class FdTable {
+    public final static int maxFds = 1 << 16;
+    private final static int firstFd = 3; // after stdin, stdout and stderr
+    private final static int initialFds = 64;
+
+    private FileTableEntry[] entries;
+    private long[] free;    // bit fd % 64 of free[fd / 64]: fd is free
+    private long[] nonFull; // bit w % 64 of nonFull[w / 64]: free[w] != 0
+    private int sharers = 1; // # of threads using this table
+
+    public FdTable() {
+        this(initialFds);
+        for (int fd = firstFd; fd < initialFds; fd++)
+            setFree(fd);
+    }
+
+    private FdTable(int size) {
+        entries = new FileTableEntry[size];
+        free = new long[size / 64];
+        nonFull = new long[(free.length + 63) / 64];
+    }
+
+    private void setFree(int fd) {
+        free[fd >> 6] |= 1L << fd;
+        nonFull[fd >> 12] |= 1L << (fd >> 6);
+    }
+
+    private void setUsed(int fd) {
+        if ((free[fd >> 6] &= ~(1L << fd)) == 0)
+            nonFull[fd >> 12] &= ~(1L << (fd >> 6));
+    }
+
+    // the lowest free fd, or -1 if all are open
+    private int lowestFree() {
+        for (int s = 0; s < nonFull.length; s++)
+            if (nonFull[s] != 0) {
+                int w = (s << 6) + Long.numberOfTrailingZeros(nonFull[s]);
+                return (w << 6) + Long.numberOfTrailingZeros(free[w]);
+            }
+        return -1;
+    }
+
+    // doubles the table: false if it is at maxFds already
+    private boolean grow() {
+        int size = entries.length;
+        if (size >= maxFds)
+            return false;
+        entries = Arrays.copyOf(entries, size * 2);
+        free = Arrays.copyOf(free, free.length * 2);
+        nonFull = Arrays.copyOf(nonFull, (free.length + 63) / 64);
+        for (int fd = size; fd < size * 2; fd++)
+            setFree(fd);
+        return true;
+    }
+
+    // a new fd for entry, the lowest free one, or -1 at maxFds
+    public synchronized int add(FileTableEntry entry) {
+        int fd = lowestFree();
+        if (fd < 0) {
+            if (!grow())
+                return -1;
+            fd = lowestFree();
+        }
+        entries[fd] = entry;
+        setUsed(fd);
+        return fd;
+    }
+
+    // frees fd, returning what it referred to, or null if it was not open
+    public synchronized FileTableEntry remove(int fd) {
+        FileTableEntry entry = get(fd);
+        if (entry != null) {
+            entries[fd] = null;
+            setFree(fd);
+        }
+        return entry;
+    }
+
+    public synchronized FileTableEntry get(int fd) {
+        return (fd >= firstFd && fd < entries.length) ? entries[fd] : null;
+    }
+
+    // the open fds, lowest first
+    public synchronized int[] openFds() {
+        int n = 0;
+        for (long word : free)
+            n += Long.bitCount(~word);
+        int[] fds = new int[n - firstFd];
+        n = 0;
+        for (int w = 0; w < free.length; w++)
+            for (long used = ~free[w]; used != 0; used &= used - 1) {
+                int fd = (w << 6) + Long.numberOfTrailingZeros(used);
+                if (fd >= firstFd)
+                    fds[n++] = fd;
+            }
+        return fds;
+    }
+
+    // one more thread uses the table
+    public synchronized FdTable share() {
+        sharers++;
+        return this;
+    }
+
+    // The table a thread about to open or close a file should change: this
+    // one if the thread is its only user, else a copy of its own, which
+    // holds each open entry once more
+    public synchronized FdTable forWrite() {
+        if (sharers == 1)
+            return this;
+        sharers--;
+        FdTable copy = new FdTable(entries.length);
+        System.arraycopy(entries, 0, copy.entries, 0, entries.length);
+        System.arraycopy(free, 0, copy.free, 0, free.length);
+        System.arraycopy(nonFull, 0, copy.nonFull, 0, nonFull.length);
+        for (FileTableEntry entry : entries)
+            if (entry != null) {
+                entry.lock.lock();
+                try {
+                    entry.count++;
+                } finally {
+                    entry.lock.unlock();
+                }
+            }
+        return copy;
+    }
+
+    // A thread that exits stops using the table: true if other threads still
+    // do, and its files stay open for them
+    public synchronized boolean leave() {
+        if (sharers == 1)
+            return false;
+        sharers--;
+        return true;
+    }
+}
@@ -1,20 +1,28 @@
-public class FileSystem {
-    private static final short blockSize = Disk.blockSize;
+import java.util.Arrays;
 
+public class FileSystem {
+    private static final int OK = 0; // success return code
     private static final int ERROR = -1; // error return code
     private final static short NULL_BLOCK = -1; // represents a null block id/pointer
 
     private SuperBlock superblock;
     private Directory directory;
     private FileTable filetable;
+    private BlockRefs refs; // the # of pointers to each block (see clone)
     private final int SEEK_SET = 0;
     private final int SEEK_CUR = 1;
     private final int SEEK_END = 2;
 
+    private int blockSize; // # of bytes in 1 block, as formatted
+    private final static int copyChunk = 32; // blocks copyRange moves per batch
+
     public FileSystem(int diskBlocks) {
         superblock = new SuperBlock(diskBlocks);
+        blockSize = superblock.blockSize;
         directory = new Directory(superblock.inodeBlocks);
         filetable = new FileTable(directory);
+        refs = new BlockRefs(superblock.totalBlocks, blockSize);
+        refs.scan(superblock.inodeBlocks); // which blocks clones share
 
         // read the "/" file from disk
         FileTableEntry dirEnt = open("/", "r"); // open root directory file for reading
@@ -36,13 +44,72 @@ public class FileSystem {
         superblock.sync(); // sync SuperBlock state with disk
     }
 
+    // the blocks to warm the cache with at boot, recorded by the last sync
+    public int[] getWarmBlocks() {
+        return superblock.getWarmBlocks();
+    }
+
+    public int warmCapacity() {
+        return superblock.warmCapacity();
+    }
+
+    // records the first count blocks (as many as fit) for the next boot; the
+    // next sync writes them to disk
+    public void setWarmBlocks(int[] blocks, int count) {
+        superblock.setWarmBlocks(blocks, count);
+    }
+
+    // checks the file system on disk, and repairs it if the report asks for
+    // that (see FsCheck); returns the # of problems found, or ERROR for a
+    // repair while files are open
+    public int fsck(FsckReport report) {
+        boolean idle = filetable.quiesce(); // no file opens until resume()
+        if (!idle && report.repair) {
+            report.detail("files are open: nothing checked");
+            return ERROR;
+        }
+        FsCheck check = new FsCheck(superblock, directory, report, idle);
+        int problems;
+        superblock.lockFreeList();
+        try {
+            problems = check.run();
+        } finally {
+            superblock.unlockFreeList();
+        }
+        try {
+            if (report.repaired > 0) {
+                sync(); // the directory and the free list's head
+                refs.scan(superblock.inodeBlocks); // truncated files let go of blocks
+            }
+        } finally {
+            if (idle)
+                filetable.resume();
+        }
+        return problems;
+    }
+
     public boolean format(int files)
+    {
+        return format(files, blockSize);
+    }
+
+    public boolean format(int files, int size)
+    {
+        return format(files, size, superblock.inodeSize);
+    }
+
+    // inodeSize 32 is the original inode; larger ones keep small files
+    // inline (see Inode)
+    public boolean format(int files, int size, int inodeSize)
     {   // busy wait while filetable is not empty (files are in use)
         while(filetable.fempty() == false) { }
-        superblock.format(files);
+        if (!superblock.format(files, size, inodeSize))
+            return false; // failure
+        blockSize = superblock.blockSize;
         // reinitialize structures
         directory = new Directory(superblock.inodeBlocks);
         filetable = new FileTable(directory);
+        refs = new BlockRefs(superblock.totalBlocks, blockSize);
         return true; // success
     }
 
@@ -54,11 +121,14 @@ public class FileSystem {
     }
 
     public boolean close(FileTableEntry ftEnt) {
-        synchronized (ftEnt) {
+        ftEnt.lock.lock();
+        try {
             ftEnt.count = ftEnt.count - 1; // release 1 user of this file
             if (ftEnt.count > 0) { // file is still in use
                 return true; // success (don't try to free)
             }
+        } finally {
+            ftEnt.lock.unlock();
         }
         return filetable.ffree(ftEnt); // try to free the file
     }
@@ -68,23 +138,31 @@ public class FileSystem {
             return ERROR; // not read mode
         }
         int readCount = 0; // # of bytes that have been read
-        synchronized (ftEnt) {
+        ftEnt.lock.lock();
+        try {
+            if (ftEnt.inode.isInline()) { // the data is in the inode: no disk access
+                readCount = Math.max(Math.min(buffer.length, fsize(ftEnt) - ftEnt.seekPtr), 0);
+                if (readCount > 0) // the seek pointer may be past the end
+                    System.arraycopy(ftEnt.inode.inline(), ftEnt.seekPtr, buffer, 0, readCount);
+                ftEnt.seekPtr += readCount;
+                return readCount;
+            }
             int moreBytes; // # of bytes read in the last iteration
             int seekBlock; // block # of seek pointer
+            // the blocks this read spans, looked up with one index block read
+            int firstBlock = ftEnt.seekPtr / blockSize;
+            int endByte = (int) Math.min((long) ftEnt.seekPtr + buffer.length, fsize(ftEnt));
+            int spanned = Math.max((endByte - 1) / blockSize - firstBlock + 1, 0);
+            int[] blocks = blockList(ftEnt, spanned);
+            ftEnt.inode.findTargetBlocks(ftEnt.seekPtr, blocks, spanned);
             for (int remainingBytes = buffer.length; /* max # of bytes to read */
                     remainingBytes > 0 && /* read until buffer is full... */
-                            ftEnt.seekPtr < fsize(ftEnt) && /* or until end of the file... */
-                            (seekBlock = ftEnt.inode
-                                    .findTargetBlock(ftEnt.seekPtr)) != ERROR; /*
-                                                                                * while there is a data block for the
-                                                                                * current seek position
-                                                                                */
+                            ftEnt.seekPtr < fsize(ftEnt); /* or until end of the file */
                     remainingBytes -= moreBytes) /*
                                                   * decrease max # of bytes to be read by the # of bytes that were read
                                                   */
             {
-                byte[] blockBuffer = new byte[blockSize]; // allocate a buffer to read a block into
-                SysLib.rawread(seekBlock, blockBuffer); // read the block containing the seek pointer
+                seekBlock = blocks[ftEnt.seekPtr / blockSize - firstBlock]; // the data block for the seek position
                 int bufferOffset = ftEnt.seekPtr % blockSize; // byte index of seek position in the block
                 int remainingBlockBytes = blockSize - bufferOffset; // # of unread bytes in the block
                 int remainingFileBytes = fsize(ftEnt) - ftEnt.seekPtr; // # of unread bytes in the file
@@ -94,12 +172,20 @@ public class FileSystem {
                                                                                                          // end of the
                                                                                                          // file and
                                                                                                          // block)
-                System.arraycopy(blockBuffer, bufferOffset, buffer, readCount, moreBytes); // append the bytes read to
-                                                                                           // buffer
+                if (seekBlock == NULL_BLOCK) { // a hole: zeros, and no disk access
+                    Arrays.fill(buffer, readCount, readCount + moreBytes, (byte) 0);
+                } else {
+                    byte[] blockBuffer = blockBuffer(ftEnt); // a buffer to read a block into
+                    SysLib.rawread(seekBlock, blockBuffer); // read the block containing the seek pointer
+                    System.arraycopy(blockBuffer, bufferOffset, buffer, readCount, moreBytes); // append the bytes
+                                                                                               // read to buffer
+                }
                 ftEnt.seekPtr += moreBytes; // move seek pointer forward
                 readCount += moreBytes; // count the total # of bytes read
             }
             return readCount; // return the total # of bytes read
+        } finally {
+            ftEnt.lock.unlock();
         }
     }
 
@@ -107,15 +193,33 @@ public class FileSystem {
         if (ftEnt.mode.compareTo("r") == 0) {
             return ERROR; // not write or append mode
         }
-        synchronized (ftEnt) {
+        ftEnt.lock.lock();
+        try {
+            if (ftEnt.inode.isInline()) {
+                int end = ftEnt.seekPtr + buffer.length;
+                if (end <= Inode.inlineCapacity()) { // it stays in the inode
+                    System.arraycopy(buffer, 0, ftEnt.inode.inline(), ftEnt.seekPtr, buffer.length);
+                    ftEnt.seekPtr = end;
+                    if (end > ftEnt.inode.length)
+                        ftEnt.inode.length = end;
+                    ftEnt.inode.toDisk(ftEnt.iNumber);
+                    return buffer.length;
+                }
+                if (!spill(ftEnt))
+                    return ERROR;
+            }
             int count; // # of bytes written (per block)
             int total = 0; // total # of bytes written
             for (int i = buffer.length; i > 0; i -= count) {
                 byte[] blockBuffer; // buffer to temporarily read block data into
+                if (!ownIndexBlock(ftEnt, ftEnt.seekPtr)) // the index may change below
+                    return writeFailed(ftEnt);
                 int currentBlock = ftEnt.inode.findTargetBlock(ftEnt.seekPtr); // get data block for the current file
                                                                                // seek position
                 if (currentBlock == ERROR) { // data block not registered
-                    short freeBlock = (short) superblock.getFreeBlock(); // allocate a new block
+                    short freeBlock = allocate(); // allocate a new block
+                    if (freeBlock == NULL_BLOCK) // the disk is full
+                        return writeFailed(ftEnt);
                     switch (ftEnt.inode.registerTargetBlock(ftEnt.seekPtr, freeBlock)) { // register the block in the
                                                                                          // inode
                     case Inode.OK: // all good. everything is fine. :)
@@ -124,23 +228,31 @@ public class FileSystem {
                                                // registered
                     case Inode.ERROR_NONSEQUENTIAL: // attempted to register the block out of order
                         SysLib.cerr("ThreadOS: Data block rejected by file node\n");
-                        return ERROR; // fail :(
+                        release(freeBlock);
+                        return writeFailed(ftEnt); // fail :(
                     case Inode.ERROR_NO_INDEX: // inode does not have an index block yet
-                        short indexBlock = (short) superblock.getFreeBlock(); // allocate a new block for the index
+                        short indexBlock = allocate(); // allocate a new block for the index
+                        if (indexBlock == NULL_BLOCK) { // the disk is full
+                            release(freeBlock);
+                            return writeFailed(ftEnt);
+                        }
                         if (!ftEnt.inode.registerIndexBlock(indexBlock)) { // try to register the index block to the
                                                                            // inode
                             SysLib.cerr("ThreadOS: Index block rejected by file node\n");
-                            return ERROR; // fail :(
+                            release(indexBlock);
+                            release(freeBlock);
+                            return writeFailed(ftEnt); // fail :(
                         }
                         if (ftEnt.inode.registerTargetBlock(ftEnt.seekPtr, freeBlock) == 0) // try to register the data
                                                                                             // block again
                             break;
                         SysLib.cerr("ThreadOS: Data block rejected by indexed file node\n");
-                        return ERROR;
+                        release(freeBlock);
+                        return writeFailed(ftEnt);
                     }
                     currentBlock = freeBlock; // use the newly allocated block
                 }
-                blockBuffer = new byte[blockSize];
+                blockBuffer = blockBuffer(ftEnt);
                 if (SysLib.rawread(currentBlock, blockBuffer) == ERROR) { // failure to read block from disk to
                                                                           // blockBuffer
                     SysLib.cerr("ThreadOS: Failed to get data from disk before writing. Abandon ship!\n");
@@ -150,6 +262,8 @@ public class FileSystem {
                 int remainder = blockSize - offset; // # of bytes remaining in the block
                 count = Math.min(remainder, i); // # of bytes to copy from this block
                 System.arraycopy(buffer, total, blockBuffer, offset, count); // copy to blockBuffer
+                if ((currentBlock = ownBlock(ftEnt, ftEnt.seekPtr, currentBlock)) == ERROR) // a block another file shares
+                    return writeFailed(ftEnt);
                 SysLib.rawwrite(currentBlock, blockBuffer); // write blockBuffer to disk
                 ftEnt.seekPtr += count; // move seek pointer forward
                 total += count; // add bytes written to total
@@ -159,21 +273,137 @@ public class FileSystem {
             }
             ftEnt.inode.toDisk(ftEnt.iNumber); // write the updated inode to disk
             return total; // return the total # of bytes written
+        } finally {
+            ftEnt.lock.unlock();
         }
     }
 
+    // The result of a write() that fails. A file it spilled out of its
+    // inode may still be short enough to be inline; then the blocks it got
+    // go back, or the next toDisk would write the inline bytes over the
+    // pointers to them.
+    private int writeFailed(FileTableEntry ftEnt) {
+        if (ftEnt.inode.isInline())
+            releaseBlocks(ftEnt, 0);
+        return ERROR;
+    }
+
+    // moves an inline file's data to a block of its own, for a write that
+    // takes the file past what its inode holds
+    private boolean spill(FileTableEntry ftEnt) {
+        if (ftEnt.inode.length == 0)
+            return true; // nothing to move; the write allocates as usual
+        short block = allocate();
+        if (block == NULL_BLOCK)
+            return false; // the disk is full
+        byte[] blockBuffer = blockBuffer(ftEnt);
+        Arrays.fill(blockBuffer, (byte) 0);
+        System.arraycopy(ftEnt.inode.inline(), 0, blockBuffer, 0, ftEnt.inode.length);
+        SysLib.rawwrite(block, blockBuffer);
+        ftEnt.inode.direct[0] = block; // the length passes the inline limit before toDisk
+        return true;
+    }
+
+    // Before a write at offset changes the index block: if another file
+    // shares it, the file gets a copy of its own. False if the disk is full.
+    private boolean ownIndexBlock(FileTableEntry ftEnt, int offset) {
+        short index = ftEnt.inode.indirect;
+        if (offset < Inode.directSize * blockSize || !refs.isShared(index))
+            return true;
+        short copy = allocate();
+        if (copy == NULL_BLOCK)
+            return false;
+        byte[] entries = new byte[blockSize];
+        SysLib.rawread(index, entries);
+        if (!refs.unshareIndex(index, entries)) { // the other files let go of it
+            release(copy);
+            return true;
+        }
+        SysLib.rawwrite(copy, entries);
+        ftEnt.inode.indirect = copy;
+        Metrics.blocksCopied.increment();
+        return true;
+    }
+
+    // The block to write the file's block at offset to, which is block
+    // itself unless another file shares it: then a new block, which takes
+    // its place in the file. The caller has read block already.
+    private int ownBlock(FileTableEntry ftEnt, int offset, int block) {
+        if (!refs.isShared(block))
+            return block;
+        short copy = allocate();
+        if (copy == NULL_BLOCK)
+            return ERROR; // the disk is full
+        if (!refs.unshare(block)) { // the other files let go of it
+            release(copy);
+            return block;
+        }
+        ftEnt.inode.replaceTargetBlock(offset, copy);
+        Metrics.blocksCopied.increment();
+        return copy;
+    }
+
+    // a block off the free list, or NULL_BLOCK if the disk is full
+    private short allocate() {
+        short block = (short) superblock.getFreeBlock();
+        if (block != NULL_BLOCK)
+            refs.allocated(block);
+        return block;
+    }
+
+    // a file lets go of block, which is free once no file points to it
+    private void release(int block) {
+        if (refs.release(block))
+            superblock.returnBlock(block);
+    }
+
+    // release() for an index block; the last file to let go of it lets go
+    // of the blocks it lists too
+    private void releaseIndex(short indexBlock) {
+        if (!refs.release(indexBlock))
+            return;
+        byte[] entries = new byte[blockSize];
+        SysLib.rawread(indexBlock, entries);
+        for (int offset = 0; offset < blockSize; offset += 2) {
+            short block = SysLib.bytes2short(entries, offset);
+            if (block != NULL_BLOCK)
+                release(block);
+        }
+        superblock.returnBlock(indexBlock);
+    }
+
+    // the entry's block buffer, allocated on its first read or write
+    private byte[] blockBuffer(FileTableEntry ftEnt) {
+        if (ftEnt.blockBuffer == null || ftEnt.blockBuffer.length != blockSize)
+            ftEnt.blockBuffer = new byte[blockSize];
+        return ftEnt.blockBuffer;
+    }
+
+    // the entry's list of at least n block #s, grown only when a read spans
+    // more blocks than any before it
+    private static int[] blockList(FileTableEntry ftEnt, int n) {
+        if (ftEnt.blockList == null || ftEnt.blockList.length < n)
+            ftEnt.blockList = new int[Math.max(n, 8)];
+        return ftEnt.blockList;
+    }
+
     public int fsize(FileTableEntry ftEnt) {
-        synchronized (ftEnt) {
+        ftEnt.lock.lock();
+        try {
             return ftEnt.inode.length;
+        } finally {
+            ftEnt.lock.unlock();
         }
     }
 
     public int seek(FileTableEntry ftEnt, int offset, int whence) {
-        synchronized (ftEnt) {
+        ftEnt.lock.lock();
+        try {
             switch (whence) {
             case SEEK_SET:
-                // seek relative to the start of the file
-                if (offset >= 0 && offset <= fsize(ftEnt)) {
+                // seek relative to the start of the file; past the end, a
+                // write leaves a hole
+                if (offset >= 0 && offset <= maxFileSize()) {
                     ftEnt.seekPtr = offset;
                     break;
                 }
@@ -183,7 +413,7 @@ public class FileSystem {
                 // seek relative to the current seek position
                 int newPosition = ftEnt.seekPtr + offset;
                 // accepts negative offset
-                if (newPosition >= 0 && newPosition <= fsize(ftEnt)) {
+                if (newPosition >= 0 && newPosition <= maxFileSize()) {
                     ftEnt.seekPtr = newPosition;
                     break;
                 }
@@ -193,7 +423,7 @@ public class FileSystem {
                 // seek from the end of the file
                 int newLocation = fsize(ftEnt) + offset;
                 // accepts negative offset
-                if (newLocation >= 0 && newLocation <= fsize(ftEnt)) {
+                if (newLocation >= 0 && newLocation <= maxFileSize()) {
                     ftEnt.seekPtr = newLocation;
                     break;
                 }
@@ -203,38 +433,417 @@ public class FileSystem {
                 return ERROR;
             }
             return ftEnt.seekPtr; // return the new seek position
+        } finally {
+            ftEnt.lock.unlock();
+        }
+    }
+
+    // Copies length bytes at offIn in one file to offOut in another, or in
+    // the same one if the two don't overlap, without a user buffer and
+    // without moving either seek pointer; returns the # of bytes copied,
+    // fewer if the source ends first or the disk fills up. A hole in the
+    // source stays one in the destination. A chunk of blocks
+    // at a time, it reads the source blocks with one batch and writes whole
+    // destination blocks with another, the new ones allocated together and
+    // in disk order. Only a block the range covers in part, at either end,
+    // is read before it is written.
+    public int copyRange(FileTableEntry in, int offIn, FileTableEntry out, int offOut, int length) {
+        if (in.mode.equals("w") || in.mode.equals("a") || out.mode.equals("r"))
+            return ERROR; // not read mode, or not write mode
+        if (offIn < 0 || offOut < 0 || length < 0)
+            return ERROR;
+        // in a fixed order, so that a copy from A to B and one from B to A,
+        // through entries that threads share, can't deadlock
+        FileTableEntry lockFirst = in, lockSecond = out;
+        if (out.iNumber < in.iNumber || (out.iNumber == in.iNumber
+                && System.identityHashCode(out) < System.identityHashCode(in))) {
+            lockFirst = out;
+            lockSecond = in;
+        }
+        lockFirst.lock.lock();
+        lockSecond.lock.lock();
+        try {
+            if (offIn > in.inode.length)
+                return ERROR; // (past the end of out leaves a hole)
+            length = Math.min(length, in.inode.length - offIn);
+            length = Math.min(length, maxFileSize() - offOut);
+            if (in.iNumber == out.iNumber && offIn < offOut + length && offOut < offIn + length)
+                return ERROR; // overlapping ranges of one file
+            if (length <= 0)
+                return 0;
+            if (in.inode.isInline() || offOut + length <= Inode.inlineCapacity())
+                return copyThrough(in, offIn, out, offOut, length); // a few bytes
+            if (out.inode.isInline() && !spill(out))
+                return ERROR;
+
+            int first = offOut / blockSize; // the destination's blocks
+            int last = (offOut + length - 1) / blockSize;
+            // buffers for one chunk, no more blocks than the copy spans; a
+            // misaligned source spans one more block than the destination
+            int chunk = Math.min(copyChunk, last - first + 1);
+            int[] source = new int[chunk + 1];
+            byte[][] from = new byte[chunk + 1][blockSize];
+            int[] target = new int[chunk];
+            byte[][] to = new byte[chunk][blockSize];
+            boolean[] fresh = new boolean[chunk]; // a new block for the slot
+            int[] allocated = new int[chunk];
+            int[] written = new int[chunk]; // where each slot is written
+            int copied = 0;
+            for (int b = first; b <= last; ) {
+                // a chunk lies within the direct blocks or past them, not both
+                int n = Math.min(chunk, last - b + 1);
+                if (b < Inode.directSize)
+                    n = Math.min(n, Inode.directSize - b);
+                int start = Math.max(offOut, b * blockSize); // its bytes
+                int end = Math.min(offOut + length, (b + n) * blockSize);
+                int sourceStart = offIn + (start - offOut);
+                int s0 = sourceStart / blockSize;
+                int sn = (sourceStart + (end - start) - 1) / blockSize - s0 + 1;
+
+                if (!ownIndexBlock(out, b * blockSize))
+                    break; // the disk is full
+                in.inode.findTargetBlocks(s0 * blockSize, source, sn);
+                out.inode.findTargetBlocks(b * blockSize, target, n);
+                SyscallBatch reads = new SyscallBatch(sn + 2);
+                for (int k = 0; k < sn; k++) {
+                    if (source[k] == NULL_BLOCK)
+                        Arrays.fill(from[k], (byte) 0); // a hole
+                    else
+                        reads.rawread(source[k], from[k]);
+                }
+                for (int k = 0; k < n; k++)
+                    Arrays.fill(to[k], (byte) 0);
+                // the bytes of a partly covered block that stay as they were
+                boolean head = start > b * blockSize && target[0] != NULL_BLOCK;
+                if (head)
+                    reads.rawread(target[0], to[0]);
+                if (end < (b + n) * blockSize && end < out.inode.length
+                        && target[n - 1] != NULL_BLOCK && !(head && n == 1))
+                    reads.rawread(target[n - 1], to[n - 1]);
+                if (SysLib.submit(reads) != reads.size())
+                    break;
+
+                for (int pos = start; pos < end; ) {
+                    int d = pos / blockSize - b;
+                    int sourcePos = pos - offOut + offIn;
+                    int k = sourcePos / blockSize - s0;
+                    int count = Math.min(end - pos, Math.min(blockSize - pos % blockSize,
+                            blockSize - sourcePos % blockSize));
+                    System.arraycopy(from[k], sourcePos % blockSize, to[d], pos % blockSize, count);
+                    pos += count;
+                }
+
+                // new blocks for the slots with none, and for shared ones;
+                // a hole that would only get zeros stays a hole
+                int need = 0;
+                for (int k = 0; k < n; k++) {
+                    fresh[k] = (target[k] == NULL_BLOCK && !isZero(to[k])) || refs.isShared(target[k]);
+                    if (fresh[k])
+                        need++;
+                }
+                int got = superblock.getFreeBlocks(need, allocated);
+                if (got < need) {
+                    for (int k = 0; k < got; k++)
+                        superblock.returnBlock(allocated[k]);
+                    break; // the disk is full
+                }
+                SyscallBatch writes = new SyscallBatch(n);
+                for (int k = 0, next = 0; k < n; k++) {
+                    written[k] = fresh[k] ? allocated[next++] : target[k];
+                    if (written[k] != NULL_BLOCK)
+                        writes.rawwrite(written[k], to[k]);
+                }
+                if (SysLib.submit(writes) != writes.size()) {
+                    for (int k = 0; k < got; k++)
+                        superblock.returnBlock(allocated[k]);
+                    break; // what did reach the disk is not counted as copied
+                }
+                // only now do the new blocks take the place of the old ones
+                for (int k = 0; k < n; k++) {
+                    if (!fresh[k])
+                        continue;
+                    if (target[k] != NULL_BLOCK && !refs.unshare(target[k]))
+                        release(target[k]); // the other files let go of it meanwhile
+                    target[k] = written[k];
+                    refs.allocated(target[k]);
+                }
+                if (b >= Inode.directSize && out.inode.indirect == NULL_BLOCK && writes.size() > 0) {
+                    short indexBlock = allocate();
+                    if (indexBlock == NULL_BLOCK || !out.inode.registerIndexBlock(indexBlock)) {
+                        for (int k = 0; k < n; k++)
+                            release(target[k]);
+                        break;
+                    }
+                }
+                out.inode.setTargetBlocks(b * blockSize, target, n);
+                copied += end - start;
+                b += n;
+            }
+            if (offOut + copied > out.inode.length)
+                out.inode.length = offOut + copied;
+            if (out.inode.isInline()) // spilled, but nothing copied
+                releaseBlocks(out, 0);
+            out.inode.toDisk(out.iNumber);
+            return copied;
+        } finally {
+            lockSecond.lock.unlock();
+            lockFirst.lock.unlock();
+        }
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
+    // copyRange() through a buffer, read() and write(), for inline files
+    private int copyThrough(FileTableEntry in, int offIn, FileTableEntry out, int offOut, int length) {
+        int inSeek = in.seekPtr;
+        int outSeek = out.seekPtr;
+        byte[] buffer = new byte[length];
+        in.seekPtr = offIn;
+        int count = read(in, buffer);
+        out.seekPtr = offOut;
+        if (count > 0)
+            count = write(out, count == length ? buffer : Arrays.copyOf(buffer, count));
+        in.seekPtr = inSeek;
+        out.seekPtr = outSeek;
+        return count;
+    }
+
+    // # of bytes in the largest file, all of whose blocks the inode can reach
+    private int maxFileSize() {
+        return (Inode.directSize + Inode.pointersPerBlock()) * blockSize;
+    }
+
+    // Makes dst a copy of src that shares src's blocks rather than copying
+    // them, whatever src's size: a block is only copied once one of the two
+    // files writes to it (see BlockRefs). An existing dst is replaced.
+    public boolean clone(String src, String dst) {
+        if (src.equals(dst) || src.equals("/") || dst.equals("/"))
+            return false;
+        FileTableEntry from = open(src, "r"); // waits for writers to finish
+        if (from == null)
+            return false;
+        FileTableEntry to = open(dst, "w");
+        if (to == null) {
+            close(from);
+            return false;
+        }
+        Inode source = from.inode;
+        Inode copy = to.inode;
+        copy.length = source.length;
+        if (source.isInline()) {
+            System.arraycopy(source.inline(), 0, copy.inline(), 0, Inode.inlineCapacity());
+        } else {
+            for (int d = 0; d < Inode.directSize; d++) {
+                copy.direct[d] = source.direct[d];
+                refs.share(source.direct[d]);
+            }
+            copy.indirect = source.indirect;
+            refs.share(source.indirect); // and so the blocks it lists
+        }
+        copy.toDisk(to.iNumber);
+        close(to);
+        close(from);
+        return true;
+    }
+
+    // Fills in the next page of a listing from the directory and the inode
+    // sizes Inode keeps in memory, with no disk access; returns the # of
+    // files on it, 0 once the listing is done
+    public int readdir(DirListing listing) {
+        int n = directory.list(listing.cursor, listing.names.length, listing.iNumbers,
+                listing.names);
+        for (int k = 0; k < n; k++) {
+            listing.sizes[k] = Inode.lengthOf(listing.iNumbers[k]);
+            listing.flags[k] = Inode.flagOf(listing.iNumbers[k]);
+        }
+        listing.count = n;
+        if (n > 0)
+            listing.cursor = listing.iNumbers[n - 1] + 1;
+        return n;
+    }
+
+    // Cuts the file to length bytes, releasing only the blocks past the new
+    // end and trimming the index block in place, or extends it with a hole.
+    // The inode is written once; the seek pointer stays where it is. A file
+    // cut short enough to be inline (see Inode) moves back into its inode.
+    public int truncate(FileTableEntry ftEnt, int length) {
+        if (ftEnt.mode.compareTo("r") == 0 || length < 0 || length > maxFileSize())
+            return ERROR;
+        ftEnt.lock.lock();
+        try {
+            Inode inode = ftEnt.inode;
+            if (inode.isInline()) {
+                if (length > Inode.inlineCapacity() && !spill(ftEnt))
+                    return ERROR;
+                if (length < inode.length)
+                    Arrays.fill(inode.inline(), length, inode.length, (byte) 0);
+            } else if (length <= Inode.inlineCapacity()) {
+                byte[] data = new byte[Inode.inlineCapacity()];
+                if (length > 0 && inode.direct[0] != NULL_BLOCK) {
+                    byte[] blockBuffer = blockBuffer(ftEnt);
+                    SysLib.rawread(inode.direct[0], blockBuffer);
+                    System.arraycopy(blockBuffer, 0, data, 0, length);
+                }
+                releaseBlocks(ftEnt, 0);
+                System.arraycopy(data, 0, inode.inline(), 0, data.length);
+            } else if (length < inode.length) {
+                int keep = (length + blockSize - 1) / blockSize; // blocks to keep
+                if (!releaseBlocks(ftEnt, keep))
+                    return ERROR;
+                // the rest of the last block reads as zeros if the file grows
+                if (!zero(ftEnt, length, keep * blockSize))
+                    return ERROR;
+            }
+            inode.length = length;
+            inode.toDisk(ftEnt.iNumber);
+            return OK;
+        } finally {
+            ftEnt.lock.unlock();
         }
     }
 
+    // Frees the blocks that length bytes at offset cover, which become a
+    // hole, and zeros the part of a block at either end that the range only
+    // covers in part; the file keeps its length. An index block left with
+    // no blocks to list is freed too.
+    public int punchHole(FileTableEntry ftEnt, int offset, int length) {
+        if (ftEnt.mode.compareTo("r") == 0 || offset < 0 || length < 0)
+            return ERROR;
+        ftEnt.lock.lock();
+        try {
+            Inode inode = ftEnt.inode;
+            int end = (int) Math.min((long) offset + length, inode.length);
+            if (offset >= end)
+                return OK; // nothing to punch
+            if (inode.isInline()) {
+                Arrays.fill(inode.inline(), offset, end, (byte) 0);
+                inode.toDisk(ftEnt.iNumber);
+                return OK;
+            }
+            // the blocks [first, last) are covered whole; the file's last
+            // block counts as covered up to the end of the file
+            int first = (offset + blockSize - 1) / blockSize;
+            int last = (end == inode.length) ? (end + blockSize - 1) / blockSize : end / blockSize;
+            if (offset % blockSize != 0 && !zero(ftEnt, offset, Math.min(end, first * blockSize)))
+                return ERROR;
+            if (last >= first && last * blockSize < end && !zero(ftEnt, last * blockSize, end))
+                return ERROR;
+
+            for (int k = first; k < Math.min(last, Inode.directSize); k++) {
+                if (inode.direct[k] == NULL_BLOCK)
+                    continue;
+                release(inode.direct[k]);
+                inode.direct[k] = NULL_BLOCK;
+            }
+            int from = Math.max(first, Inode.directSize);
+            if (last > from && inode.indirect != NULL_BLOCK) {
+                if (!ownIndexBlock(ftEnt, from * blockSize))
+                    return ERROR; // the disk is full
+                int[] blocks = new int[last - from];
+                inode.findTargetBlocks(from * blockSize, blocks, blocks.length);
+                for (int k = 0; k < blocks.length; k++) {
+                    if (blocks[k] != NULL_BLOCK)
+                        release(blocks[k]);
+                    blocks[k] = NULL_BLOCK;
+                }
+                inode.setTargetBlocks(from * blockSize, blocks, blocks.length);
+                if (inode.indexedBlocks() == 0) {
+                    release(inode.indirect); // lists nothing now
+                    inode.indirect = NULL_BLOCK;
+                }
+            }
+            inode.toDisk(ftEnt.iNumber);
+            return OK;
+        } finally {
+            ftEnt.lock.unlock();
+        }
+    }
+
+    // Writes zeros to [from, to) of one block, unless it is a hole already;
+    // the caller writes the inode. False if the disk is full.
+    private boolean zero(FileTableEntry ftEnt, int from, int to) {
+        if (from >= to)
+            return true;
+        if (!ownIndexBlock(ftEnt, from))
+            return false;
+        int block = ftEnt.inode.findTargetBlock(from);
+        if (block == NULL_BLOCK)
+            return true;
+        byte[] blockBuffer = blockBuffer(ftEnt);
+        SysLib.rawread(block, blockBuffer);
+        Arrays.fill(blockBuffer, from % blockSize, (to - 1) % blockSize + 1, (byte) 0);
+        if ((block = ownBlock(ftEnt, from, block)) == ERROR)
+            return false;
+        SysLib.rawwrite(block, blockBuffer);
+        return true;
+    }
+
     public boolean delete(String filename) {
         FileTableEntry ftEnt = open(filename, "w"); // acquire and clear file by opening for writing
         return (close(ftEnt) && directory.ifree(ftEnt.iNumber)); // try to release and unregister the file
     }
     
+    // Releases the file's blocks from the keep-th on. The index block goes
+    // too if that leaves it listing nothing, and is otherwise trimmed in
+    // place. False if the disk is full (to copy an index block clones share).
+    private boolean releaseBlocks(FileTableEntry ftEnt, int keep) {
+        Inode inode = ftEnt.inode;
+        if (inode.indirect != NULL_BLOCK && keep <= Inode.directSize) {
+            // deallocate the index block, and the blocks it lists if no
+            // other file shares it
+            short indexBlock = inode.indirect;
+            inode.indirect = NULL_BLOCK;
+            releaseIndex(indexBlock);
+        } else if (inode.indirect != NULL_BLOCK) {
+            if (!ownIndexBlock(ftEnt, keep * blockSize))
+                return false;
+            int[] entries = new int[Inode.pointersPerBlock()];
+            inode.findTargetBlocks(Inode.directSize * blockSize, entries, entries.length);
+            int kept = 0;
+            int released = 0;
+            for (int e = 0; e < entries.length; e++) {
+                if (entries[e] == NULL_BLOCK)
+                    continue;
+                if (e < keep - Inode.directSize) {
+                    kept++;
+                    continue;
+                }
+                release(entries[e]);
+                entries[e] = NULL_BLOCK;
+                released++;
+            }
+            if (kept == 0) {
+                release(inode.indirect); // it lists nothing now
+                inode.indirect = NULL_BLOCK;
+            } else if (released > 0) {
+                inode.setTargetBlocks(Inode.directSize * blockSize, entries, entries.length);
+            }
+        }
+        // deallocate the direct blocks
+        for (int blockNum = keep; blockNum < Inode.directSize; blockNum++) {
+            if (inode.direct[blockNum] == NULL_BLOCK)
+                continue;
+            release(inode.direct[blockNum]); // add the block to set of free blocks
+            inode.direct[blockNum] = NULL_BLOCK; // unregister the block from the Inode
+        }
+        return true;
+    }
+
     private boolean deallocAllBlocks(FileTableEntry ftEnt) {
         // only deallocate blocks when there is exactly one file table entry
         // opening the file
         if (ftEnt.inode.count != 1) {
             return false;
         }
-        // unregister the index block from the Inode
-        byte[] indexBuffer = ftEnt.inode.unregisterIndexBlock();
-        int num;
-        // deallocate the index blocks
-        if (indexBuffer != null) {
-            short blockNum;
-            num = 0;
-            // repeat recursively until there is not another index block
-            while ((blockNum = SysLib.bytes2short(indexBuffer, num)) != NULL_BLOCK) // get next index block
-                superblock.returnBlock((int) blockNum); // add the block to set of free blocks
-        }
-        // deallocate the direct blocks
-        for (short blockNum = 0; blockNum < Inode.directSize; blockNum++) {
-            if (ftEnt.inode.direct[blockNum] == NULL_BLOCK)
-                continue;
-            superblock.returnBlock((int) ftEnt.inode.direct[blockNum]); // add the block to set of free blocks
-            ftEnt.inode.direct[blockNum] = NULL_BLOCK; // unregister the block from the Inode
-        }
+        releaseBlocks(ftEnt, 0); // all of them
+        ftEnt.inode.length = 0; // the file is empty now, and so inline if it can be
+        if (Inode.inlineCapacity() > 0)
+            Arrays.fill(ftEnt.inode.inline(), (byte) 0);
         ftEnt.inode.toDisk(ftEnt.iNumber); //write the Inode back to disk
         return true;
     }
@@ -1,9 +1,14 @@
+import java.util.concurrent.locks.ReentrantLock;
+
 public class FileTableEntry {  // Each table entry should have
     public int seekPtr;        //    a file seek pointer
     public final Inode inode;  //    a reference to an inode
     public final short iNumber;//    this inode number
     public int count;          //    a count to maintain #threads sharing this
     public final String mode;  //    "r", "w", "w+", or "a"
+    public final ReentrantLock lock = new ReentrantLock( ); // guards seekPtr and the inode
+    byte[] blockBuffer;        //    1 block for read/write, reused under lock
+    int[] blockList;           //    the block #s a read spans, reused under lock
     FileTableEntry ( Inode i, short inumber, String m ) {
 	seekPtr = 0;           // the seek pointer is set to the file top.
 	inode = i;
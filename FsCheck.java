@@ -0,0 +1,528 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Checks the file system on disk against itself for FileSystem.fsck( ), and
+// repairs it if asked to (see FsckReport). It reads as little as it can, in
+// as few trips to the disk as it can:
+//  - the inode blocks with one batch of reads (the kernel runs a batch in
+//    block order, holding on to the disk), then all the index blocks they
+//    point to with another; from those comes a map of which file owns each
+//    block. Files cloned from one another may share blocks (see BlockRefs),
+//    but a block is never both a data block and an index block, and no file
+//    points to one block twice.
+//  - the free list from its head, as far as the time budget allows; it may
+//    only reach blocks that no file owns
+//  - to repair the free list, every block no file owns with one batch, to
+//    learn its link. The chains of valid links among them are kept and
+//    joined end to end, which rewrites one block per chain instead of one
+//    per free block.
+// A file is truncated at its first bad or doubly owned block pointer, and a
+// file with blocks but no directory entry gets the entry "#<inode number>".
+class FsCheck {
+    private final static int NULL_BLOCK = -1;
+    private final static int NOBODY = -1; // owner of a block no file has
+    private final static int METADATA = -2; // owner of the superblock and inode blocks
+    private final static int UNKNOWN = Integer.MIN_VALUE; // a link not read yet
+    private final static int maxLeakDetails = 5;
+
+    private final SuperBlock superblock;
+    private final Directory directory;
+    private final FsckReport report;
+    private final boolean idle; // no file is open, and none can be opened
+
+    private final int blockSize;
+    private final int totalBlocks;
+    private final int inodes;
+    private final int firstData; // the first block that can hold data
+    private long deadline; // when the free list walk stops
+
+    // the inodes as found on disk
+    private int[] length;
+    private short[] count;
+    private short[] flag;
+    private short[][] direct;
+    private short[] indirect;
+    private byte[][] index; // the index block's contents, if it has one
+    private boolean[] changed; // to be written back
+
+    private int[] owner; // by block: the inode that owns it, NOBODY or METADATA
+    private int[] refs; // by block: # of pointers to it
+    private boolean[] isIndex; // by block: owned as an index block
+    private int[] indexUsers; // by block: # of inodes it is the index block of
+    private int[] blocksOf; // by inode: # of blocks it owns
+    private int[] next; // by block: its free list link, or UNKNOWN
+    private boolean directoryChanged = false;
+
+    FsCheck(SuperBlock superblock, Directory directory, FsckReport report, boolean idle) {
+        this.superblock = superblock;
+        this.directory = directory;
+        this.report = report;
+        this.idle = idle;
+        blockSize = superblock.blockSize;
+        totalBlocks = superblock.totalBlocks;
+        inodes = superblock.inodeBlocks;
+        firstData = 2 + inodes * superblock.inodeSize / blockSize;
+    }
+
+    // true if a repair changed the directory, which the caller must sync
+    boolean directoryChanged() {
+        return directoryChanged;
+    }
+
+    // checks, and repairs if asked to; returns the # of problems found
+    int run() {
+        long start = System.currentTimeMillis();
+        deadline = (report.budgetMillis > 0) ? start + report.budgetMillis : Long.MAX_VALUE;
+        if (!idle)
+            report.detail("files are open: writes in progress may look like problems");
+        report.inodes = inodes;
+        readInodes();
+        checkInodes();
+        checkDirectory();
+        writeInodes();
+        checkFreeList();
+        report.millis = System.currentTimeMillis() - start;
+        return report.problems();
+    }
+
+    private void readInodes() {
+        int perBlock = blockSize / superblock.inodeSize;
+        int blocks = (inodes + perBlock - 1) / perBlock;
+        int[] numbers = new int[blocks];
+        for (int i = 0; i < blocks; i++)
+            numbers[i] = 1 + i; // the inodes start at block 1
+        byte[][] data = readBlocks(numbers, blocks);
+
+        length = new int[inodes];
+        count = new short[inodes];
+        flag = new short[inodes];
+        direct = new short[inodes][Inode.directSize];
+        indirect = new short[inodes];
+        index = new byte[inodes][];
+        changed = new boolean[inodes];
+        for (int i = 0; i < inodes; i++) {
+            byte[] buffer = data[i / perBlock];
+            int offset = i % perBlock * superblock.inodeSize;
+            length[i] = SysLib.bytes2int(buffer, offset);
+            count[i] = SysLib.bytes2short(buffer, offset + 4);
+            flag[i] = SysLib.bytes2short(buffer, offset + 6);
+            offset += 8;
+            for (int d = 0; d < Inode.directSize; d++, offset += 2)
+                direct[i][d] = SysLib.bytes2short(buffer, offset);
+            indirect[i] = SysLib.bytes2short(buffer, offset);
+            if (Inode.inlineCapacity() > 0 && length[i] >= 0 && length[i] <= Inode.inlineCapacity()) {
+                // inline: data, not pointers, and no blocks
+                Arrays.fill(direct[i], (short) NULL_BLOCK);
+                indirect[i] = NULL_BLOCK;
+            }
+        }
+
+        // the index blocks of all files, at once
+        int[] indexBlocks = new int[inodes];
+        int[] indexOwners = new int[inodes];
+        int n = 0;
+        for (int i = 0; i < inodes; i++) {
+            if (valid(i) && isData(indirect[i])) {
+                indexBlocks[n] = indirect[i];
+                indexOwners[n++] = i;
+            }
+        }
+        data = readBlocks(indexBlocks, n);
+        for (int k = 0; k < n; k++)
+            index[indexOwners[k]] = data[k];
+    }
+
+    // an inode that could have been written by Inode.toDisk
+    private boolean valid(int i) {
+        return length[i] >= 0 && count[i] >= 0 && flag[i] >= Inode.FLAG_UNUSED
+                && flag[i] <= Inode.FLAG_WRITE;
+    }
+
+    private boolean isData(int block) {
+        return block >= firstData && block < totalBlocks;
+    }
+
+    // builds the ownership map, truncating files at their first bad pointer
+    private void checkInodes() {
+        owner = new int[totalBlocks];
+        Arrays.fill(owner, NOBODY);
+        for (int b = 0; b < firstData && b < totalBlocks; b++)
+            owner[b] = METADATA;
+        refs = new int[totalBlocks];
+        isIndex = new boolean[totalBlocks];
+        blocksOf = new int[inodes];
+        indexUsers = new int[totalBlocks];
+        for (int i = 0; i < inodes; i++)
+            if (valid(i) && isData(indirect[i]))
+                indexUsers[indirect[i]]++;
+
+        for (int i = 0; i < inodes; i++) {
+            if (!valid(i))
+                continue; // checkDirectory( ) clears it
+            int cut = -1; // the first pointer that can't stay
+            for (int d = 0; d < Inode.directSize && cut < 0; d++)
+                if (direct[i][d] != NULL_BLOCK && !claim(direct[i][d], i, "block " + d, false))
+                    cut = d;
+            if (cut < 0 && indirect[i] != NULL_BLOCK) {
+                boolean first = isData(indirect[i]) && owner[indirect[i]] == NOBODY;
+                if (!claim(indirect[i], i, "the index block", true))
+                    cut = Inode.directSize;
+                else if (first) // a clone's shared index: the first owner claimed its blocks
+                    for (int e = 0; e < Inode.pointersPerBlock() && cut < 0; e++) {
+                        short block = SysLib.bytes2short(index[i], e * 2);
+                        if (block != NULL_BLOCK
+                                && !claim(block, i, "block " + (Inode.directSize + e), false))
+                            cut = Inode.directSize + e;
+                    }
+            }
+            if (cut >= 0 && report.repair) {
+                truncate(i, cut);
+                report.repaired++;
+            }
+
+            if (idle && (count[i] != 0 || flag[i] != Inode.FLAG_UNUSED)) {
+                report.staleInodes++;
+                report.detail("inode " + i + ": marked open (count " + count[i] + ", flag "
+                        + flag[i] + ") while no file is");
+                if (report.repair) {
+                    count[i] = 0;
+                    flag[i] = Inode.FLAG_UNUSED;
+                    changed[i] = true;
+                    report.repaired++;
+                }
+            }
+        }
+    }
+
+    // gives block to inode i, where the inode calls it what, or shares it
+    // with its owner; false, once the problem is recorded, if it is outside
+    // the data area, owned already as the other kind of block, or i's already
+    private boolean claim(int block, int i, String what, boolean asIndex) {
+        if (!isData(block)) {
+            report.badPointers++;
+            report.detail("inode " + i + ": " + what + " is block " + block
+                    + ", outside the data area");
+            return false;
+        }
+        if (owner[block] != NOBODY && (owner[block] == i || isIndex[block] != asIndex)) {
+            report.doublyOwned++;
+            report.detail("inode " + i + ": " + what + " is block " + block + ", which "
+                    + (owner[block] == i ? "it" : "inode " + owner[block]) + " has already");
+            return false;
+        }
+        blocksOf[i]++;
+        if (refs[block]++ > 0) { // a block clones share
+            if (refs[block] == 2)
+                report.sharedBlocks++;
+            return true;
+        }
+        owner[block] = i;
+        isIndex[block] = asIndex;
+        report.ownedBlocks++;
+        return true;
+    }
+
+    // undoes claim(block, i, ...) for a pointer inode i drops
+    private void unclaim(int block, int i) {
+        blocksOf[i]--;
+        if (--refs[block] == 1) {
+            report.sharedBlocks--;
+        } else if (refs[block] == 0) {
+            owner[block] = NOBODY;
+            report.ownedBlocks--;
+        }
+    }
+
+    // drops inode i's block pointers from the cut-th on; the blocks it keeps
+    // are the ones it was found to own (claim stopped at the cut)
+    private void truncate(int i, int cut) {
+        if (cut > Inode.directSize && indexUsers[indirect[i]] > 1) {
+            // Clones share the index block, and their lengths would not
+            // follow a trim of it: this file lets go of it instead, and the
+            // next clone checks it as its first owner
+            for (int e = 0; e < cut - Inode.directSize; e++) {
+                short block = SysLib.bytes2short(index[i], e * 2);
+                if (block != NULL_BLOCK)
+                    unclaim(block, i);
+            }
+            unclaim(indirect[i], i);
+            cut = Inode.directSize;
+        }
+        if (cut <= Inode.directSize && isData(indirect[i]))
+            indexUsers[indirect[i]]--;
+        for (int d = cut; d < Inode.directSize; d++)
+            direct[i][d] = NULL_BLOCK;
+        if (cut <= Inode.directSize) {
+            indirect[i] = NULL_BLOCK;
+        } else {
+            for (int e = cut - Inode.directSize; e < Inode.pointersPerBlock(); e++)
+                SysLib.short2bytes((short) NULL_BLOCK, index[i], e * 2);
+            writeBlocks(new int[] { indirect[i] }, new byte[][] { index[i] }, 1);
+        }
+        length[i] = Math.min(length[i], cut * blockSize);
+        changed[i] = true;
+        report.detail("inode " + i + ": truncated to " + length[i] + " bytes");
+    }
+
+    // matches the directory entries with the inodes
+    private void checkDirectory() {
+        String root = directory.fileName((short) 0);
+        if (!"/".equals(root)) {
+            report.orphanedEntries++;
+            report.detail("the entry of inode 0 is \"" + root + "\", not \"/\"");
+            if (report.repair) {
+                directory.link((short) 0, "/");
+                directoryChanged = true;
+                report.repaired++;
+            }
+        }
+
+        Map<String, Integer> named = new HashMap<String, Integer>();
+        named.put("/", 0);
+        for (int i = 1; i < inodes; i++) {
+            String name = directory.fileName((short) i);
+            if (!valid(i)) {
+                if (name != null) {
+                    report.orphanedEntries++;
+                    report.detail("entry \"" + name + "\": inode " + i + " is not a valid inode");
+                } else {
+                    report.orphanedInodes++;
+                    report.detail("inode " + i + ": not a valid inode");
+                }
+                if (report.repair) {
+                    directory.ifree((short) i);
+                    directoryChanged |= (name != null);
+                    clear(i);
+                    report.repaired++;
+                }
+            } else if (name == null) {
+                if (blocksOf[i] > 0) {
+                    report.orphanedInodes++;
+                    report.detail("inode " + i + ": " + blocksOf[i] + " blocks, but no directory entry");
+                    if (report.repair) {
+                        relink(i, named);
+                        report.repaired++;
+                    }
+                }
+            } else if (named.containsKey(name)) {
+                // namei finds the first entry of a name only
+                report.orphanedEntries++;
+                report.detail("entry \"" + name + "\" of inode " + i + ": inode "
+                        + named.get(name) + " has the name already");
+                if (report.repair) {
+                    relink(i, named);
+                    report.repaired++;
+                }
+            } else
+                named.put(name, i);
+        }
+    }
+
+    // gives inode i the entry "#i", or "#i#" and so on if that is taken
+    private void relink(int i, Map<String, Integer> named) {
+        String name = "#" + i;
+        while (named.containsKey(name) || directory.namei(name) >= 0)
+            name += "#";
+        directory.link((short) i, name);
+        named.put(name, i);
+        directoryChanged = true;
+        report.detail("inode " + i + ": now \"" + name + "\"");
+    }
+
+    // makes inode i a blank one; the blocks it pointed to were never claimed
+    private void clear(int i) {
+        length[i] = 0;
+        count[i] = 0;
+        flag[i] = Inode.FLAG_UNUSED;
+        Arrays.fill(direct[i], (short) NULL_BLOCK);
+        indirect[i] = NULL_BLOCK;
+        changed[i] = true;
+    }
+
+    private void writeInodes() {
+        for (int i = 0; i < inodes; i++) {
+            if (!changed[i])
+                continue;
+            Inode inode = new Inode((short) i); // keeps its inline data
+            inode.length = length[i];
+            inode.count = count[i];
+            inode.flag = flag[i];
+            System.arraycopy(direct[i], 0, inode.direct, 0, Inode.directSize);
+            inode.indirect = indirect[i];
+            inode.toDisk((short) i);
+        }
+    }
+
+    // follows the free list from its head, and rebuilds it if it is broken
+    // or blocks are missing from it
+    private void checkFreeList() {
+        next = new int[totalBlocks];
+        Arrays.fill(next, UNKNOWN);
+        if (report.budgetMillis == 0)
+            readLinks(); // all at once, in block order, rather than one by one
+
+        boolean[] listed = new boolean[totalBlocks];
+        int previous = NULL_BLOCK;
+        int block = superblock.freeList;
+        boolean broken = false;
+        while (block != NULL_BLOCK) {
+            String wrong = null;
+            if (!isData(block))
+                wrong = "outside the data area";
+            else if (owner[block] >= 0)
+                wrong = "which inode " + owner[block] + " owns";
+            else if (listed[block])
+                wrong = "which is on the list already";
+            if (wrong != null) {
+                report.badFreeLinks++;
+                report.detail("free list: " + (previous == NULL_BLOCK ? "the head"
+                        : "the link of block " + previous) + " is block " + block + ", " + wrong);
+                broken = true;
+                break;
+            }
+            if (next[block] == UNKNOWN) {
+                if (System.currentTimeMillis() >= deadline)
+                    break;
+                next[block] = SysLib.bytes2int(readBlocks(new int[] { block }, 1)[0], 0);
+            }
+            listed[block] = true;
+            report.freeBlocks++;
+            previous = block;
+            block = next[block];
+        }
+        report.complete = broken || block == NULL_BLOCK;
+        if (!report.complete) {
+            report.detail("free list: checked its first " + report.freeBlocks
+                    + " blocks in the time budget");
+            return;
+        }
+
+        for (int b = firstData; b < totalBlocks; b++) {
+            if (owner[b] == NOBODY && !listed[b]) {
+                if (report.leaked++ < maxLeakDetails)
+                    report.detail("block " + b + ": neither in a file nor on the free list");
+            }
+        }
+        if (report.repair && (broken || report.leaked > 0)) {
+            rebuildFreeList();
+            report.repaired += (broken ? 1 : 0) + report.leaked;
+        }
+    }
+
+    // reads the link of every block nobody owns that isn't known yet
+    private void readLinks() {
+        int[] blocks = new int[totalBlocks];
+        int n = 0;
+        for (int b = firstData; b < totalBlocks; b++)
+            if (owner[b] == NOBODY && next[b] == UNKNOWN)
+                blocks[n++] = b;
+        byte[][] data = readBlocks(blocks, n);
+        for (int k = 0; k < n; k++)
+            next[blocks[k]] = SysLib.bytes2int(data[k], 0);
+    }
+
+    // Makes the free list hold every block nobody owns. The valid links
+    // between those blocks form chains; each block gets at most one
+    // predecessor, and a cycle is cut where it is entered. The chains, the
+    // one starting at the old head first, are then joined by rewriting the
+    // last block of each.
+    private void rebuildFreeList() {
+        readLinks();
+        int[] previous = new int[totalBlocks];
+        Arrays.fill(previous, NULL_BLOCK);
+        boolean[] cut = new boolean[totalBlocks]; // its link is not kept
+        for (int b = firstData; b < totalBlocks; b++) {
+            if (owner[b] != NOBODY)
+                continue;
+            int link = next[b];
+            if (link == NULL_BLOCK)
+                continue;
+            if (isData(link) && owner[link] == NOBODY && previous[link] == NULL_BLOCK)
+                previous[link] = b;
+            else
+                cut[b] = true;
+        }
+        int head = superblock.freeList;
+        if (isData(head) && owner[head] == NOBODY && previous[head] != NULL_BLOCK) {
+            cut[previous[head]] = true;
+            previous[head] = NULL_BLOCK;
+        }
+
+        // the chains: where each starts and ends
+        int[] starts = new int[totalBlocks];
+        int[] ends = new int[totalBlocks];
+        int chains = 0;
+        boolean[] seen = new boolean[totalBlocks];
+        if (isData(head) && owner[head] == NOBODY) {
+            starts[chains] = head;
+            ends[chains++] = follow(head, cut, seen);
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            // first the chains that start somewhere, then the cycles left
+            for (int b = firstData; b < totalBlocks; b++) {
+                if (owner[b] != NOBODY || seen[b])
+                    continue;
+                if (previous[b] != NULL_BLOCK) {
+                    if (pass == 0)
+                        continue;
+                    cut[previous[b]] = true;
+                    previous[b] = NULL_BLOCK;
+                }
+                starts[chains] = b;
+                ends[chains++] = follow(b, cut, seen);
+            }
+        }
+
+        // join them, rewriting only the ends that link elsewhere
+        int[] blocks = new int[chains];
+        byte[][] data = new byte[chains][];
+        int n = 0;
+        for (int c = 0; c < chains; c++) {
+            int link = (c + 1 < chains) ? starts[c + 1] : NULL_BLOCK;
+            if (next[ends[c]] == link)
+                continue;
+            data[n] = new byte[blockSize];
+            SysLib.int2bytes(link, data[n], 0);
+            blocks[n++] = ends[c];
+            next[ends[c]] = link;
+        }
+        writeBlocks(blocks, data, n);
+        superblock.freeList = (chains > 0) ? starts[0] : NULL_BLOCK;
+        report.detail("free list: rebuilt from " + chains + " chains, " + n + " blocks rewritten");
+    }
+
+    // marks the chain from start seen and returns its last block
+    private int follow(int start, boolean[] cut, boolean[] seen) {
+        int block = start;
+        seen[block] = true;
+        while (!cut[block] && next[block] != NULL_BLOCK && !seen[next[block]]) {
+            block = next[block];
+            seen[block] = true;
+        }
+        cut[block] = true; // its link, if any, leads nowhere the list may go
+        return block;
+    }
+
+    // reads n blocks in one batch; the kernel runs it in block order
+    private byte[][] readBlocks(int[] blocks, int n) {
+        byte[][] data = new byte[n][blockSize];
+        SyscallBatch batch = new SyscallBatch(Math.max(n, 1));
+        for (int k = 0; k < n; k++)
+            batch.rawread(blocks[k], data[k]);
+        if (SysLib.submit(batch) == Kernel.ERROR) // not a user thread: at boot
+            for (int k = 0; k < n; k++)
+                SysLib.rawread(blocks[k], data[k]);
+        report.blocksRead += n;
+        return data;
+    }
+
+    private void writeBlocks(int[] blocks, byte[][] data, int n) {
+        SyscallBatch batch = new SyscallBatch(Math.max(n, 1));
+        for (int k = 0; k < n; k++)
+            batch.rawwrite(blocks[k], data[k]);
+        if (SysLib.submit(batch) == Kernel.ERROR)
+            for (int k = 0; k < n; k++)
+                SysLib.rawwrite(blocks[k], data[k]);
+    }
+}
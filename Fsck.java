@@ -0,0 +1,33 @@
+// Checks the file system, and with "repair" fixes what it finds: block
+// pointers out of the data area, blocks files point to in ways they can't
+// share them (clones may share blocks, see SysLib.clone), a broken free
+// list, blocks that are neither in a file nor free, and directory entries
+// and inodes that don't match (see FsCheck). A repair needs every file to be
+// closed. Given a time budget in ms, it follows the free list only that
+// long; with no budget it checks all of it.
+// Usage: l Fsck [repair] [budget-ms]
+public class Fsck extends Thread {
+   private boolean repair = false;
+   private int budgetMillis = 0;
+
+   public Fsck( ) {
+   }
+
+   public Fsck( String args[] ) {
+      for ( int i = 0; i < args.length; i++ ) {
+         if ( args[i].equals( "repair" ) )
+            repair = true;
+         else
+            budgetMillis = Integer.parseInt( args[i] );
+      }
+   }
+
+   public void run( ) {
+      FsckReport report = new FsckReport( repair, budgetMillis );
+      int problems = SysLib.fsck( report );
+      SysLib.cout( report.toString( ) );
+      if ( problems == Kernel.ERROR )
+         SysLib.cerr( "Fsck: close all files to repair\n" );
+      SysLib.exit( );
+   }
+}
@@ -0,0 +1,86 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// What a thread asks SysLib.fsck( ) to do, and what the check found. The
+// kernel fills in the counts; problems( ) is their sum, and toString( ) a
+// summary with the first few problems spelled out.
+//
+// A file system check needs no open files to repair anything. With a time
+// budget, the free list is only followed as far as the budget allows (the
+// part most likely to be wrong after a crash is its head, where blocks are
+// allocated and freed); a damaged free list is still repaired in full.
+public class FsckReport {
+   public final static int maxDetails = 20; // problems kept as text
+
+   // what to do
+   boolean repair;       // fix what is found
+   int budgetMillis;     // 0 = check everything
+
+   // what was found
+   int inodes;           // inodes checked
+   int ownedBlocks;      // data and index blocks of files
+   int freeBlocks;       // blocks reached on the free list
+   int blocksRead;       // disk blocks the check read
+   int badPointers;      // block pointers out of the data area
+   int sharedBlocks;     // blocks that clones share: not a problem
+   int doublyOwned;      // blocks one file points to twice, or two files
+                         // point to as an index block and a data block
+   int badFreeLinks;     // free list links to owned or already listed blocks
+   int leaked;           // blocks neither owned nor on the free list
+   int orphanedEntries;  // directory entries no file can be found by
+   int orphanedInodes;   // files with blocks but no directory entry
+   int staleInodes;      // inodes still marked open with no file open
+   int repaired;         // problems fixed
+   boolean complete;     // the whole free list was checked
+   long millis;          // how long it took
+
+   private final List<String> details = new ArrayList<String>( );
+
+   public FsckReport( boolean repair, int budgetMillis ) {
+      this.repair = repair;
+      this.budgetMillis = budgetMillis;
+   }
+
+   // # of problems found, whether repaired or not
+   public int problems( ) {
+      return badPointers + doublyOwned + badFreeLinks + leaked + orphanedEntries
+         + orphanedInodes + staleInodes;
+   }
+
+   public int repaired( ) {
+      return repaired;
+   }
+
+   public boolean complete( ) {
+      return complete;
+   }
+
+   // records a problem, or another note, for toString( )
+   void detail( String text ) {
+      if ( details.size( ) < maxDetails )
+         details.add( text );
+   }
+
+   public String toString( ) {
+      StringBuilder s = new StringBuilder( );
+      s.append( "fsck: " ).append( inodes ).append( " inodes, " )
+       .append( ownedBlocks ).append( " blocks in files (" )
+       .append( sharedBlocks ).append( " shared), " )
+       .append( freeBlocks ).append( " free, " )
+       .append( blocksRead ).append( " blocks read in " )
+       .append( millis ).append( " ms" )
+       .append( complete ? "" : " (free list checked in part)" ).append( '\n' );
+      s.append( "fsck: " ).append( problems( ) ).append( " problems: " )
+       .append( badPointers ).append( " bad pointers, " )
+       .append( doublyOwned ).append( " doubly owned, " )
+       .append( badFreeLinks ).append( " bad free links, " )
+       .append( leaked ).append( " leaked, " )
+       .append( orphanedEntries ).append( " orphaned entries, " )
+       .append( orphanedInodes ).append( " orphaned inodes, " )
+       .append( staleInodes ).append( " stale inodes; " )
+       .append( repaired ).append( " repaired\n" );
+      for ( String detail : details )
+         s.append( "  " ).append( detail ).append( '\n' );
+      return s.toString( );
+   }
+}
@@ -1,18 +1,39 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
 public class Inode {
 
    // private constants
-   private final static int blockSize = Disk.blockSize; // # of bytes in 1 block (512)
    private final static short NULL_BLOCK = -1; // represents a null block id/pointer
+
+   // disk layout, set by the SuperBlock from the formatted block size
+   private static int blockSize = Disk.defaultBlockSize; // # of bytes in 1 block
+
+   // toDisk read-modify-writes the block shared by several iNodes, so each
+   // iNode block is guarded by one of these locks (striped by block number)
+   private final static ReentrantLock[] blockLocks = new ReentrantLock[64];
+   static {
+      for (int i = 0; i < blockLocks.length; i++)
+         blockLocks[i] = new ReentrantLock();
+   }
    
    // public constants
-   public final static int iNodesPerBlock = 16; // # of iNodes in 1 block
-   public final static int iNodeSize = 32; // fix to 32 bytes
+   public final static int iNodeSize = 32; // the original inode, just the fields below
+   public final static int maxSize = 256;
    public final static int directSize = 11; // # direct pointers
 
+   // An inode larger than iNodeSize keeps a file of up to inlineCapacity()
+   // bytes inline: its data takes the place of the block pointers, right
+   // after length, count and flag, and it has no blocks at all. A file is
+   // inline exactly when it is that short; a write past that moves its
+   // data to a block (see FileSystem.write).
+   private final static int inlineOffset = 8;
+   private static int size = iNodeSize; // as formatted, set by the SuperBlock
+
    // return codes
    public final static int OK = 0;
    public final static int ERROR_CONFLICT = -1;
-   public final static int ERROR_NONSEQUENTIAL = -2;
+   public final static int ERROR_NONSEQUENTIAL = -2; // unused since files may have holes
    public final static int ERROR_NO_INDEX = -3;
 
    // possible flag values
@@ -28,6 +49,86 @@ public class Inode {
    public short direct[] = new short[directSize]; // direct pointers
    public short indirect; // a indirect pointer
 
+   private byte[] inline; // the data of an inline file, if inodes have room
+
+   // the length and flag of every iNode as last read from or written to
+   // disk, by iNumber, so that a directory listing needs no disk access
+   // (see FileSystem.readdir); the mount reads them all (see readAll)
+   private static int[] lengths = new int[0];
+   private static short[] flags = new short[0];
+
+   private byte[] scratch; // 1 block, reused by toDisk and the index lookups
+
+   static void setBlockSize(int size) {
+      blockSize = size;
+   }
+
+   // an inode size a format may choose: a power of two from iNodeSize to
+   // maxSize, no larger than the block
+   static boolean isValidSize(int bytes, int blockSize) {
+      return bytes >= iNodeSize && bytes <= maxSize && bytes <= blockSize
+            && (bytes & (bytes - 1)) == 0;
+   }
+
+   static void setSize(int bytes) {
+      size = bytes;
+   }
+
+   // # of bytes a file can have and still be inline; 0 for 32-byte inodes
+   static int inlineCapacity() {
+      return size == iNodeSize ? 0 : size - inlineOffset;
+   }
+
+   // true if this file's data is in the inode rather than in blocks
+   boolean isInline() {
+      return inlineCapacity() > 0 && length <= inlineCapacity();
+   }
+
+   // this inode's inline data area, allocated the first time it is used
+   byte[] inline() {
+      if (inline == null || inline.length != inlineCapacity())
+         inline = new byte[inlineCapacity()];
+      return inline;
+   }
+
+   // this iNode's block buffer, so that reading or writing a file allocates
+   // nothing once the iNode is open
+   private byte[] scratch() {
+      if (scratch == null || scratch.length != blockSize)
+         scratch = new byte[blockSize];
+      return scratch;
+   }
+
+   private static synchronized void remember(int iNumber, int length, short flag) {
+      if (iNumber >= lengths.length) {
+         int n = Math.max(iNumber + 1, lengths.length * 2);
+         lengths = Arrays.copyOf(lengths, n);
+         flags = Arrays.copyOf(flags, n);
+      }
+      lengths[iNumber] = length;
+      flags[iNumber] = flag;
+   }
+
+   // the length of the i-th inode, as remembered
+   static synchronized int lengthOf(int iNumber) {
+      return iNumber < lengths.length ? lengths[iNumber] : 0;
+   }
+
+   // the flag of the i-th inode, as remembered
+   static synchronized short flagOf(int iNumber) {
+      return iNumber < flags.length ? flags[iNumber] : FLAG_UNUSED;
+   }
+
+   // # of iNodes in 1 block
+   static int iNodesPerBlock() {
+      return blockSize / size;
+   }
+
+   // # of block pointers in 1 index block
+   static int pointersPerBlock() {
+      return blockSize / 2;
+   }
+
    Inode() { // a default constructor
       length = 0;
       count = 0;
@@ -39,12 +140,22 @@ public class Inode {
 
    Inode(short iNumber) { // retrieving inode from disk
       // retrieve the block containing this iNode
-      int block = (iNumber / iNodesPerBlock) + 1;
+      int block = (iNumber / iNodesPerBlock()) + 1;
       byte[] buffer = new byte[blockSize]; // holds 1 block
-      SysLib.rawread(block, buffer); // read the block into the buffer
+      ReentrantLock lock = blockLocks[block % blockLocks.length];
+      lock.lock();
+      try {
+         SysLib.rawread(block, buffer); // read the block into the buffer
+      } finally {
+         lock.unlock();
+      }
 
-      // read iNode properties from the block
-      int offset = iNumber % iNodesPerBlock * iNodeSize; // offset in the block
+      fromBytes(buffer, iNumber % iNodesPerBlock() * size);
+      remember(iNumber, length, flag);
+   }
+
+   // reads the iNode properties at offset in a block of iNodes
+   private void fromBytes(byte[] buffer, int offset) {
       // read length
       length = SysLib.bytes2int(buffer, offset);
       offset += 4; // offset index by size of int
@@ -54,6 +165,14 @@ public class Inode {
       // read flag
       flag = SysLib.bytes2short(buffer, offset);
       offset += 2; // offset index by size of short
+      if (isInline()) {
+         // the data where the pointers would be, and no blocks
+         System.arraycopy(buffer, offset, inline(), 0, inlineCapacity());
+         for (int d = 0; d < directSize; d++)
+            direct[d] = NULL_BLOCK;
+         indirect = NULL_BLOCK;
+         return;
+      }
       // read direct pointers
       for (int d = 0; d < directSize; d++) {
          direct[d] = SysLib.bytes2short(buffer, offset);
@@ -61,38 +180,69 @@ public class Inode {
       }
       // read indirect pointer
       indirect = SysLib.bytes2short(buffer, offset);
-      offset += 2; // offset index by size of short
+   }
+
+   // the first count iNodes, read from disk in one batch rather than a
+   // block at a time
+   static Inode[] readAll(int count) {
+      int blocks = (count + iNodesPerBlock() - 1) / iNodesPerBlock();
+      byte[][] buffers = new byte[blocks][blockSize];
+      SyscallBatch batch = new SyscallBatch(Math.max(blocks, 1));
+      for (int b = 0; b < blocks; b++)
+         batch.rawread(b + 1, buffers[b]);
+      if (SysLib.submit(batch) == Kernel.ERROR) // not a user thread: at boot
+         for (int b = 0; b < blocks; b++)
+            SysLib.rawread(b + 1, buffers[b]);
+      Inode[] inodes = new Inode[count];
+      for (int i = 0; i < count; i++) {
+         inodes[i] = new Inode();
+         inodes[i].fromBytes(buffers[i / iNodesPerBlock()], i % iNodesPerBlock() * size);
+         remember(i, inodes[i].length, inodes[i].flag);
+      }
+      return inodes;
    }
 
    void toDisk(short iNumber) { // save to disk as the i-th inode
 
       // retrieve the block containing this iNode
-      int block = (iNumber / iNodesPerBlock) + 1;
-      byte[] buffer = new byte[blockSize]; // holds 1 block
-      SysLib.rawread(block, buffer); // read the block into the buffer
+      int block = (iNumber / iNodesPerBlock()) + 1;
+      ReentrantLock lock = blockLocks[block % blockLocks.length];
+      lock.lock();
+      try {
+         byte[] buffer = scratch(); // holds 1 block
+         SysLib.rawread(block, buffer); // read the block into the buffer
 
-      // write iNode properties into the buffer
-      int offset = iNumber % iNodesPerBlock * iNodeSize; // offset in the block
-      // write length
-      SysLib.int2bytes(length, buffer, offset);
-      offset += 4; // offset index by size of int
-      // write count
-      SysLib.short2bytes(count, buffer, offset);
-      offset += 2; // offset index by size of short
-      // write flag
-      SysLib.short2bytes(flag, buffer, offset);
-      offset += 2; // offset index by size of short
-      // write direct pointers
-      for (int d = 0; d < directSize; d++) {
-         SysLib.short2bytes(direct[d], buffer, offset);
+         // write iNode properties into the buffer
+         int offset = iNumber % iNodesPerBlock() * size; // offset in the block
+         // write length
+         SysLib.int2bytes(length, buffer, offset);
+         offset += 4; // offset index by size of int
+         // write count
+         SysLib.short2bytes(count, buffer, offset);
+         offset += 2; // offset index by size of short
+         // write flag
+         SysLib.short2bytes(flag, buffer, offset);
          offset += 2; // offset index by size of short
+         if (isInline()) {
+            // write the data instead of the pointers
+            System.arraycopy(inline(), 0, buffer, offset, inlineCapacity());
+         } else {
+            // write direct pointers
+            for (int d = 0; d < directSize; d++) {
+               SysLib.short2bytes(direct[d], buffer, offset);
+               offset += 2; // offset index by size of short
+            }
+            // write indirect pointer
+            SysLib.short2bytes(indirect, buffer, offset);
+            offset += 2; // offset index by size of short
+         }
+
+         // write the buffer back to the block on the disk
+         SysLib.rawwrite(block, buffer);
+         remember(iNumber, length, flag);
+      } finally {
+         lock.unlock();
       }
-      // write indirect pointer
-      SysLib.short2bytes(indirect, buffer, offset);
-      offset += 2; // offset index by size of short
-      
-      // write the buffer back to the block on the disk
-      SysLib.rawwrite(block, buffer);
    }
 
    // return the block pointed to by the indirect pointer
@@ -100,30 +250,30 @@ public class Inode {
       return indirect;
    }
    
-   // set the block pointed to by a direct pointer
+   // set the block pointed to by a direct pointer, or an index entry; the
+   // blocks before it may be holes (see findTargetBlock)
    // return pass (true) or fail (false)
    int registerTargetBlock(int offset, short targetBlockNumber) {
       int index = offset / blockSize;
       
       // Register the block in a direct block
       if (index < directSize) {
-         for (int i = 0; i < directSize; i++)
-            if (direct[index] >= 0) // if the direct pointer is not set 
-               return ERROR_CONFLICT; // fail :(
-            if (index > 0 && direct[index - 1] < 0) // if the previous direct pointer is not set 
-                  return ERROR_NONSEQUENTIAL; // fail :(
-            direct[index] = targetBlockNumber; // set the direct pointer
-            return OK; // pass :)
+         if (direct[index] >= 0) // if the direct pointer is already set
+            return ERROR_CONFLICT; // fail :(
+         direct[index] = targetBlockNumber; // set the direct pointer
+         return OK; // pass :)
       }
 
       if (indirect < 0) // no indirect block set
          return ERROR_NO_INDEX; // fail
 
       // Register the block in the indirect index
-      byte[] buffer = new byte[blockSize];
+      byte[] buffer = scratch();
       SysLib.rawread(indirect, buffer); // read index block from disk
       
       index -= directSize;
+      if (index >= pointersPerBlock()) // beyond the reach of the index block
+         return ERROR_CONFLICT; // fail :(
       if (SysLib.bytes2short(buffer, index * 2) > 0) // index position is already registered
          return ERROR_CONFLICT; // fail :(
       SysLib.short2bytes(targetBlockNumber, buffer, index * 2); // register target block to index position
@@ -135,9 +285,6 @@ public class Inode {
    // set the block pointed to by the indirect pointer
    // return pass (true) or fail (false)
    boolean registerIndexBlock(short indexBlockNumber) {
-      for (int i = 0; i < directSize; i++)
-         if (direct[i] < 0) // if a direct pointer is not set 
-            return false; // fail :(
       if (indirect >= 0) // if the indirect pointer is already set
          return false; // fail :(
       // set indirect pointer
@@ -150,7 +297,8 @@ public class Inode {
       return true; // pass :)
    }
 
-   // return the block containing a part of this file
+   // return the block containing a part of this file, or NULL_BLOCK for a
+   // hole: a part of a sparse file never written to, which reads as zeros
    int findTargetBlock(int offset) {
       if (offset < 0)
          return NULL_BLOCK;
@@ -159,10 +307,10 @@ public class Inode {
          short block = direct[index];
          return block;
       } else if (indirect >= 0) {
-         byte[] buffer = new byte[blockSize];
+         byte[] buffer = scratch();
          SysLib.rawread(indirect, buffer); // read the block into the buffer
          index -= directSize; // offset index from end of direct array (end of direct[] == index 0)
-         if (index < blockSize) {
+         if (index < pointersPerBlock()) {
             short block = SysLib.bytes2short(buffer, index * 2); // read short from buffer at index
             return block;
          }
@@ -170,6 +318,88 @@ public class Inode {
       return NULL_BLOCK;
    }
    
+   // the blocks of count consecutive block slots, from the one holding
+   // offset, into blocks (NULL_BLOCK for a slot with none); the index block
+   // is read once rather than once per slot
+   void findTargetBlocks(int offset, int[] blocks, int count) {
+      int index = offset / blockSize;
+      byte[] buffer = null;
+      for (int k = 0; k < count; k++, index++) {
+         if (index < directSize)
+            blocks[k] = direct[index];
+         else if (indirect < 0 || index - directSize >= pointersPerBlock())
+            blocks[k] = NULL_BLOCK;
+         else {
+            if (buffer == null) {
+               buffer = scratch();
+               SysLib.rawread(indirect, buffer); // read index block from disk
+            }
+            blocks[k] = SysLib.bytes2short(buffer, (index - directSize) * 2);
+         }
+      }
+   }
+
+   // set count consecutive block slots, from the one holding offset, to
+   // blocks, whatever they held; the index block is read and written once
+   // return pass (true) or fail (false: a slot is out of reach)
+   boolean setTargetBlocks(int offset, int[] blocks, int count) {
+      int index = offset / blockSize;
+      if (index + count > directSize + pointersPerBlock())
+         return false; // beyond the reach of the index block
+      if (index + count > directSize && indirect < 0)
+         return false; // no index block yet
+      byte[] buffer = null;
+      for (int k = 0; k < count; k++, index++) {
+         if (index < directSize) {
+            direct[index] = (short) blocks[k];
+            continue;
+         }
+         if (buffer == null) {
+            buffer = scratch();
+            SysLib.rawread(indirect, buffer); // read index block from disk
+         }
+         SysLib.short2bytes((short) blocks[k], buffer, (index - directSize) * 2);
+      }
+      if (buffer != null)
+         SysLib.rawwrite(indirect, buffer); // write index block back to disk
+      return true;
+   }
+
+   // # of blocks the index block lists, 0 without an index block
+   int indexedBlocks() {
+      if (indirect < 0)
+         return 0;
+      byte[] buffer = scratch();
+      SysLib.rawread(indirect, buffer); // read index block from disk
+      int count = 0;
+      for (int i = 0; i < pointersPerBlock(); i++)
+         if (SysLib.bytes2short(buffer, i * 2) >= 0)
+            count++;
+      return count;
+   }
+
+   // point the registered block at offset to targetBlockNumber instead
+   // return pass (true) or fail (false)
+   boolean replaceTargetBlock(int offset, short targetBlockNumber) {
+      int index = offset / blockSize;
+      if (index < directSize) {
+         if (direct[index] < 0) // nothing to replace
+            return false; // fail :(
+         direct[index] = targetBlockNumber;
+         return true; // pass :)
+      }
+      index -= directSize;
+      if (indirect < 0 || index >= pointersPerBlock())
+         return false; // fail :(
+      byte[] buffer = scratch();
+      SysLib.rawread(indirect, buffer); // read index block from disk
+      if (SysLib.bytes2short(buffer, index * 2) < 0) // nothing to replace
+         return false; // fail :(
+      SysLib.short2bytes(targetBlockNumber, buffer, index * 2);
+      SysLib.rawwrite(indirect, buffer); // write index block back to disk
+      return true; // pass :)
+   }
+
    // clear the index block pointer and return the contents of the index block
    byte[] unregisterIndexBlock() {
       if (indirect >= 0) {
@@ -1,6 +1,7 @@
 import java.util.*;
 import java.lang.reflect.*;
 import java.io.*;
+import java.util.function.BooleanSupplier;
 
 public class Kernel
 {
@@ -33,8 +34,18 @@ public class Kernel
    public final static int SIZE    = 16; // SysLib.size( int fd )
    public final static int SEEK    = 17; // SysLib.seek( int fd, int offest, 
    //              int whence )
-   public final static int FORMAT  = 18; // SysLib.format( int files )
+   public final static int FORMAT  = 18; // SysLib.format( int files[, int blockSize
+   //              [, int inodeSize]] )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
+   public final static int BLKSIZE = 20; // SysLib.blockSize( )
+   public final static int SUBMIT  = 21; // SysLib.submit( SyscallBatch b )
+   public final static int STATS   = 22; // SysLib.stats( StringBuffer s )
+   public final static int FSCK    = 23; // SysLib.fsck( FsckReport r )
+   public final static int CLONE   = 24; // SysLib.clone( String src, String dst )
+   public final static int COPYRANGE = 25; // SysLib.copyRange( int fdIn, int offIn, ... )
+   public final static int PUNCHHOLE = 26; // SysLib.punchHole( int fd, int offset, int length )
+   public final static int TRUNCATE = 27; // SysLib.truncate( int fd, int length )
+   public final static int READDIR = 28; // SysLib.readdir( DirListing l )
 
    // Predefined file descriptors
    public final static int STDIN  = 0;
@@ -49,6 +60,12 @@ public class Kernel
    private static Scheduler scheduler;
    private static Disk disk;
    private static Cache cache;
+   private static int cacheBlocks;     // # of cache frames (boot option)
+   private static String cachePolicy;  // replacement policy (boot option)
+   private static boolean cacheOffHeap; // frames in direct memory (boot option)
+   private static int dirtyRatio;      // write-back thresholds (boot options)
+   private static int dirtyLimit;
+   private static int dirtyExpire;     // ms, 0 = no background write-back
 
    // Synchronized Queues
    private static SyncQueue waitQueue;  // for threads to wait for their child
@@ -56,44 +73,153 @@ public class Kernel
    
    private static FileSystem fs;
 
+   // the syscall trace being recorded (boot option trace=<file>), or null
+   private static TraceRecorder trace = null;
+
    private final static int COND_DISK_REQ = 1; // wait condition
    private final static int COND_DISK_FIN = 2; // wait condition
+
+   // Scheduler parameters
+   private final static int DEFAULT_TIME_SLICE = 1000;
+   private final static int DEFAULT_MAX_THREADS = 10000;
+   private final static int DEFAULT_CACHE_BLOCKS = 10;
+   private final static int DEFAULT_DIRTY_RATIO = 25;   // % of the frames
+   private final static int DEFAULT_DIRTY_LIMIT = 80;   // % of the frames
+   private final static int DEFAULT_DIRTY_EXPIRE = 3000;
+   private final static int DEFAULT_WARM_TIME = 5000;   // ms of prefetching
+   private final static int DEFAULT_TIME_SAMPLE = 16;   // syscalls per one timed
    
+   // Thread.ofVirtual( ) and Thread.Builder.unstarted( Runnable ), looked up
+   // reflectively so the kernel still builds and runs on JVMs without
+   // virtual threads. null means user programs get platform threads.
+   private static Object virtualBuilder = null;
+   private static Method virtualUnstarted = null;
+
    // Standard input
    private static BufferedReader input
       = new BufferedReader( new InputStreamReader( System.in ) );
 
-   // The heart of Kernel
+   // The heart of Kernel. Every syscall is counted, and some are timed,
+   // in Metrics, and recorded if a trace is on; the typed entry points
+   // below do that themselves.
    public static int interrupt( int irq, int cmd, int param, Object args ) {
+      if ( irq != INTERRUPT_SOFTWARE )
+         return dispatch( irq, cmd, param, args );
+      long start = begin( cmd );
+      int result = ERROR;
+      try {
+         return result = dispatch( irq, cmd, param, args );
+      } finally {
+         Metrics.exit( cmd, start );
+         if ( trace != null )
+            trace.exit( cmd, param, args, result );
+      }
+   }
+
+   private static int dispatch( int irq, int cmd, int param, Object args ) {
       TCB myTcb;
       switch( irq ) {
          case INTERRUPT_SOFTWARE: // System calls
             switch( cmd ) { 
                case BOOT:
+                  // boot options given as key=value strings (may be null)
+                  String[] options = ( String[] )args;
+
+                  // a new thread is announced on stderr only if asked for
+                  TCB.setVerbose( getOption( options, "spawnlog", "quiet" ).equals( "verbose" ) );
+
+                  // count (metrics=off: don't) and time one syscall in
+                  // timesample
+                  Metrics.configure( !getOption( options, "metrics", "on" ).equals( "off" ),
+                                     getIntOption( options, "timesample", DEFAULT_TIME_SAMPLE ) );
+
                   // instantiate and start a scheduler
-                  scheduler = new Scheduler( ); 
+                  int maxThreads = getIntOption( options, "maxthreads", DEFAULT_MAX_THREADS );
+                  if ( maxThreads < 1 ) {
+                     SysLib.cerr( "threadOS: maxthreads=" + maxThreads
+                                  + " leaves no thread ids, ignoring it\n" );
+                     maxThreads = DEFAULT_MAX_THREADS;
+                  }
+                  scheduler = new Scheduler( DEFAULT_TIME_SLICE, maxThreads,
+                                             getOption( options, "scheduler", "rr" ).equals( "mlfq" ),
+                                             getIntOption( options, "cpus", 1 ) );
                   scheduler.start( );
 
-                  // instantiate and start a disk
-                  disk = new Disk( 1000 );
+                  // user programs run on virtual threads if asked for
+                  if ( getOption( options, "threads", "platform" ).equals( "virtual" ) )
+                     initVirtualThreads( );
+
+                  // instantiate and start a disk; disk=memory keeps it in
+                  // memory, without seeks and without the DISK file
+                  disk = new Disk( 1000, Disk.defaultBlockSize,
+                                   getOption( options, "disk", "file" ).equals( "memory" ) );
                   disk.start( );
 
-                  // instantiate a cache memory
-                  cache = new Cache( Disk.blockSize, 10 );
+                  // instantiate a cache memory of the requested size and policy
+                  cacheBlocks = getIntOption( options, "cachesize", DEFAULT_CACHE_BLOCKS );
+                  cachePolicy = getOption( options, "cache", CachePolicy.names[0] );
+                  if ( CachePolicy.create( cachePolicy, 1 ) == null ) {
+                     SysLib.cerr( "threadOS: unknown cache policy " + cachePolicy
+                                  + ", using " + CachePolicy.names[0] + "\n" );
+                     cachePolicy = CachePolicy.names[0];
+                  }
+                  cacheOffHeap = getOption( options, "cachemem", "heap" ).equals( "offheap" );
+                  cache = new Cache( disk.getBlockSize( ), cacheBlocks, cachePolicy,
+                                     cacheOffHeap );
 
                   // instantiate synchronized queues
                   ioQueue = new SyncQueue( );
                   waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
+
+                  // write dirty cache blocks back in the background (it
+                  // needs the ioQueue for the disk)
+                  dirtyRatio = getIntOption( options, "dirtyratio", DEFAULT_DIRTY_RATIO );
+                  dirtyLimit = getIntOption( options, "dirtylimit", DEFAULT_DIRTY_LIMIT );
+                  dirtyExpire = getIntOption( options, "dirtyexpire", DEFAULT_DIRTY_EXPIRE );
+                  startFlusher( cache );
                   
                   // FileSystem instantiation
                   fs = new FileSystem(1000);
+
+                  // check the file system at mount, and repair it: fsck=full,
+                  // or fsck=<ms> to follow the free list only that long
+                  String fsck = getOption( options, "fsck", "off" );
+                  int fsckBudget = fsck.equals( "off" ) ? -1
+                     : fsck.equals( "full" ) ? 0 : getIntOption( options, "fsck", -1 );
+                  if ( fsckBudget >= 0 ) {
+                     FsckReport report = new FsckReport( true, fsckBudget );
+                     fs.fsck( report );
+                     SysLib.cerr( report.toString( ) );
+                  }
+
+                  // warm the cache up with the blocks it held at the last
+                  // sync, in the background and for a limited time
+                  int warmTime = getIntOption( options, "warmtime", DEFAULT_WARM_TIME );
+                  int[] warmBlocks = fs.getWarmBlocks( );
+                  if ( warmTime > 0 )
+                     cache.startPrefetch( warmBlocks, warmBlocks.length, warmTime );
+
+                  // resolve programs that will be exec'ed at high rates
+                  preloadPrograms( getOption( options, "preload", "" ) );
+
+                  // record the syscalls of user programs into a file
+                  String traceFile = getOption( options, "trace", "" );
+                  if ( !traceFile.isEmpty( ) ) {
+                     try {
+                        trace = new TraceRecorder( traceFile, disk.getBlockSize( ),
+                                                   disk.getDiskSize( ) );
+                     } catch ( IOException e ) {
+                        SysLib.cerr( "threadOS: cannot trace to " + traceFile + ": "
+                                     + e + "\n" );
+                     }
+                  }
                   return OK;
                case EXEC:
                   return sysExec( ( String[] )args );
                case WAIT:
                   if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
                      int myTid = myTcb.getTid( ); // get my thread ID
-                     return waitQueue.enqueueAndSleep( myTid ); //wait on my tid
+                     return sleepOn( waitQueue, myTid ); //wait on my tid
                      // woken up by my child thread
                   }
                   return ERROR;
@@ -106,6 +232,7 @@ public class Kernel
                         waitQueue.dequeueAndWakeup( myPid, myTid );
                         // I'm terminated!
                         scheduler.deleteThread( );
+                        Metrics.threadsExited.increment( );
                         return OK;
                      }
                   }
@@ -114,23 +241,17 @@ public class Kernel
                   scheduler.sleepThread( param ); // param = milliseconds
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  diskCommand( RAWREAD, param, ( byte[] )args );
                   return OK;
                case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  diskCommand( RAWWRITE, param, ( byte[] )args );
                   return OK;
                case SYNC:     // synchronize disk data to a real file
+                  recordHotBlocks( );
                   fs.sync( );
-                  while ( disk.sync( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  diskCommand( SYNC, 0, null );
+                  if ( trace != null )
+                     trace.flush( );
                   return OK;
                case READ:
                   switch ( param ) {
@@ -157,15 +278,7 @@ public class Kernel
                         System.out.println( "threaOS: caused read errors" );
                         return ERROR;
                   }
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null )
-                  {
-                      FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                      if ( ftEnt != null )
-                      {
-                          return fs.read( ftEnt, ( byte[] )args );
-                      }
-                  }
-                  return ERROR;
+                  return fileRead( param, ( byte[] )args );
                case WRITE:
                   switch ( param ) {
                      case STDIN:
@@ -178,15 +291,7 @@ public class Kernel
                         System.err.print( (String)args );
                         return OK;
                   }
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null )
-                  {
-                      FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                      if ( ftEnt != null )
-                      {
-                          return fs.write( ftEnt, ( byte[] )args );
-                      }
-                  }
-                  return ERROR;
+                  return fileWrite( param, ( byte[] )args );
                case CREAD:   // to be implemented in assignment 4
                   return cache.read( param, ( byte[] )args ) ? OK : ERROR;
                case CWRITE:  // to be implemented in assignment 4
@@ -198,23 +303,11 @@ public class Kernel
                   cache.flush( );
                   return OK;
                case OPEN:    // to be implemented in project
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null )
-                  {
-                     String[] s = ( String[] )args;
-                     return myTcb.getFd( fs.open( s[0], s[1] ) );
-                  }
-                  else
-                     return ERROR;
+                  String[] s = ( String[] )args;
+                  return fileOpen( s[0], s[1] );
                case CLOSE:   // to be implemented in project
                   if ( ( myTcb = scheduler.getMyTcb( ) ) != null )
-                  {
-                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                     if ( ftEnt == null || fs.close( ftEnt ) == false )
-                        return ERROR;
-                     if ( myTcb.returnFd( param ) != ftEnt )
-                        return ERROR;
-                     return OK;
-                  }
+                     return close( myTcb, param, myTcb.getFtEnt( param ) );
                   return ERROR;
                case SIZE:    // to be implemented in project
                   if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
@@ -224,27 +317,51 @@ public class Kernel
                   }
                   return ERROR;
                case SEEK:    // to be implemented in project
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null )
-                  {
-                     int[] seekArgs = ( int[] )args;
-                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                     if ( ftEnt != null )
-                        return fs.seek( ftEnt, seekArgs[0], seekArgs[1] );
-                  }
-                  return ERROR;
+                  int[] seekArgs = ( int[] )args;
+                  return fileSeek( param, seekArgs[0], seekArgs[1] );
                case FORMAT:  // to be implemented in project
-                  return ( fs.format( param ) == true ) ? OK : ERROR;
+                  int[] formatArgs = ( args == null ) ? new int[0] : ( int[] )args;
+                  int blockSize = ( formatArgs.length > 0 ) ? formatArgs[0]
+                                                            : disk.getBlockSize( );
+                  if ( formatArgs.length > 1 ) // a new inode size
+                     return fs.format( param, blockSize, formatArgs[1] ) ? OK : ERROR;
+                  return ( fs.format( param, blockSize ) == true ) ? OK : ERROR;
                case DELETE:  // to be implemented in project
                   return ( fs.delete( (String)args ) == true ) ? OK : ERROR;
+               case BLKSIZE: // query the disk block size; only a format changes it
+                  return disk.getBlockSize( );
+               case SUBMIT:  // run a batch of operations
+                  return runBatch( ( SyscallBatch )args );
+               case STATS:   // append the kernel's metrics to a buffer
+                  Metrics.report( ( StringBuffer )args, cache );
+                  return OK;
+               case FSCK:    // check the file system, and repair it if asked
+                  return fs.fsck( ( FsckReport )args );
+               case CLONE:   // copy a file by sharing its blocks
+                  String[] names = ( String[] )args;
+                  return fs.clone( names[0], names[1] ) ? OK : ERROR;
+               case COPYRANGE: // copy between two open files in the kernel
+                  return fileCopyRange( param, ( int[] )args );
+               case PUNCHHOLE: // free a range of a file, which reads as zeros
+                  int[] hole = ( int[] )args;
+                  FileTableEntry holeEnt = getFtEnt( param );
+                  return ( holeEnt != null ) ? fs.punchHole( holeEnt, hole[0], hole[1] )
+                                             : ERROR;
+               case TRUNCATE: // cut a file short, or extend it with a hole
+                  FileTableEntry truncEnt = getFtEnt( param );
+                  return ( truncEnt != null ) ? fs.truncate( truncEnt, ( ( int[] )args )[0] )
+                                              : ERROR;
+               case READDIR:  // the next page of a directory listing
+                  return fs.readdir( ( DirListing )args );
             }
             return ERROR;
          case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
-            ioQueue.dequeueAndWakeup( COND_DISK_FIN );
-
-            // wake up the thread waiting for a request acceptance
-            ioQueue.dequeueAndWakeup( COND_DISK_REQ );
+            // wake up the thread waiting for a service completion; there is
+            // only one request in flight, so this is the thread that owns it
+            ioQueue.wakeOne( COND_DISK_FIN );
 
+            // the thread waiting for a request acceptance is woken up by
+            // that owner once it has taken the result (see diskCommand)
             return OK;
          case INTERRUPT_IO:   // other I/O interrupts (not implemented)
             return OK;
@@ -252,38 +369,421 @@ public class Kernel
       return OK;
    }
 
-   // Spawning a new thread
-   private static int sysExec( String args[] ) {
-      String thrName = args[0]; // args[0] has a thread name
-      Object thrObj = null;
+   // Hands the blocks the cache holds now to the file system, which keeps
+   // them on disk with the next sync as the blocks to prefetch at boot
+   private static void recordHotBlocks( ) {
+      int[] blocks = new int[fs.warmCapacity( )];
+      fs.setWarmBlocks( blocks, cache.hotBlocks( blocks ) );
+   }
+
+   // Switches the disk to a new block size: for SuperBlock only, at mount
+   // or format, since the file system must describe the new geometry.
+   // Dirty frames are written back first; the cached frames of the old
+   // geometry are then stale, and a new cache replaces them.
+   static boolean setBlockSize( int size ) {
+      if ( size == disk.getBlockSize( ) )
+         return true;
+      cache.stopPrefetch( );
+      cache.stopFlusher( ); // the disk must be idle
+      cache.drain( ); // write back what is dirty before dropping the frames
+      if ( disk.setBlockSize( size ) == false ) {
+         startFlusher( cache );
+         return false;
+      }
+      cache = new Cache( size, cacheBlocks, cachePolicy, cacheOffHeap );
+      startFlusher( cache );
+      return true;
+   }
+
+   // Starts the cache's background write-back as configured at boot
+   private static void startFlusher( Cache cache ) {
+      if ( dirtyExpire > 0 )
+         cache.startFlusher( dirtyRatio, dirtyLimit, dirtyExpire );
+   }
+
+   // Returns the value of a key=value boot option, or defaultValue
+   private static String getOption( String[] options, String key,
+                                    String defaultValue ) {
+      if ( options != null )
+         for ( int i = 0; i < options.length; i++ )
+            if ( options[i].startsWith( key + "=" ) )
+               return options[i].substring( key.length( ) + 1 );
+      return defaultValue;
+   }
+
+   // Returns the value of a numeric boot option, or defaultValue if it is
+   // missing or not a number (which is reported rather than fatal)
+   private static int getIntOption( String[] options, String key,
+                                    int defaultValue ) {
+      String value = getOption( options, key, null );
+      if ( value == null )
+         return defaultValue;
+      try {
+         return Integer.parseInt( value );
+      } catch ( NumberFormatException e ) {
+         SysLib.cerr( "threadOS: " + key + "=" + value
+                      + " is not a number, ignoring it\n" );
+         return defaultValue;
+      }
+   }
+
+   // Sleeps on a condition with the caller taken off the run queue, so the
+   // scheduler doesn't hand out time slices to a thread that can't use them
+   private static int sleepOn( SyncQueue queue, int condition ) {
+      TCB myTcb = scheduler.getMyTcb( );
+      scheduler.blockThread( myTcb );
+      int result = queue.enqueueAndSleep( condition );
+      scheduler.unblockThread( myTcb );
+      return result;
+   }
+
+   // Like sleepOn, but returns as soon as done is true, which is checked
+   // first without sleeping at all
+   private static void waitOn( SyncQueue queue, int condition,
+                               BooleanSupplier done ) {
+      if ( done.getAsBoolean( ) )
+         return;
+      TCB myTcb = scheduler.getMyTcb( );
+      scheduler.blockThread( myTcb );
+      queue.sleepUntil( condition, done );
+      scheduler.unblockThread( myTcb );
+   }
+
+   // A disk command on its way to the disk. Submitting fails while another
+   // request is in flight. Each thread reuses its own, so a disk command
+   // allocates nothing.
+   private static class DiskRequest implements BooleanSupplier {
+      int command;
+      int blockId;
+      byte[] buffer;
+
+      public boolean getAsBoolean( ) {
+         switch ( command ) {
+            case RAWREAD:
+               return disk.read( blockId, buffer );
+            case RAWWRITE:
+               return disk.write( blockId, buffer );
+            default:
+               return disk.sync( );
+         }
+      }
+   }
+
+   private final static ThreadLocal<DiskRequest> diskRequest
+      = ThreadLocal.withInitial( DiskRequest::new );
+   private final static BooleanSupplier diskFinished
+      = () -> disk.testAndResetReady( );
+
+   // Runs one disk command (RAWREAD, RAWWRITE or SYNC). The disk interrupt
+   // wakes only the owner of the finished request, which takes the result
+   // and then hands the idle disk to exactly one thread waiting to submit.
+   private static void diskCommand( int command, int blockId, byte[] buffer ) {
+      diskCommand( command, blockId, buffer, true );
+   }
+
+   // handOff false keeps the idle disk for the caller's next command: no one
+   // is woken to submit, though a thread that is not asleep may still get
+   // in first. The caller's last command must hand off.
+   private static void diskCommand( int command, int blockId, byte[] buffer,
+                                    boolean handOff ) {
+      DiskRequest request = diskRequest.get( );
+      request.command = command;
+      request.blockId = blockId;
+      request.buffer = buffer;
+      Metrics.diskEnter( );
+      waitOn( ioQueue, COND_DISK_REQ, request );
+      request.buffer = null; // the disk is done with it once accepted
+      waitOn( ioQueue, COND_DISK_FIN, diskFinished );
+      Metrics.diskExit( );
+      if ( handOff )
+         ioQueue.wakeOne( COND_DISK_REQ );
+   }
+
+   // Typed entry points for the hot syscalls. They do the same as
+   // interrupt( ) for RAWREAD, RAWWRITE, OPEN, READ, WRITE, SEEK and
+   // SUBMIT, but take their arguments as they are, so SysLib needs no
+   // argument array and nothing is cast from Object. None of them allocates.
+   // Each counts, times and traces itself around the body interrupt( )
+   // shares.
+
+   public static int rawread( int blockId, byte buffer[] ) {
+      long start = begin( RAWREAD );
+      diskCommand( RAWREAD, blockId, buffer );
+      return end( RAWREAD, start, blockId, buffer.length, 0, null, null, OK );
+   }
+
+   public static int rawwrite( int blockId, byte buffer[] ) {
+      long start = begin( RAWWRITE );
+      diskCommand( RAWWRITE, blockId, buffer );
+      return end( RAWWRITE, start, blockId, buffer.length, 0, null, null, OK );
+   }
+
+   public static int open( String fileName, String mode ) {
+      long start = begin( OPEN );
+      int fd = fileOpen( fileName, mode );
+      return end( OPEN, start, fd, 0, 0, fileName, mode, fd );
+   }
 
+   public static int read( int fd, byte buffer[] ) {
+      long start = begin( READ );
+      int result = fileRead( fd, buffer );
+      return end( READ, start, fd, buffer.length, 0, null, null, result );
+   }
+
+   public static int write( int fd, byte buffer[] ) {
+      long start = begin( WRITE );
+      int result = fileWrite( fd, buffer );
+      return end( WRITE, start, fd, buffer.length, 0, null, null, result );
+   }
+
+   public static int seek( int fd, int offset, int whence ) {
+      long start = begin( SEEK );
+      int result = fileSeek( fd, offset, whence );
+      return end( SEEK, start, fd, offset, whence, null, null, result );
+   }
+
+   // batches are not traced: Replay has nothing to run them with
+   public static int submit( SyscallBatch batch ) {
+      long start = begin( SUBMIT );
+      int result = runBatch( batch );
+      return end( SUBMIT, start, 0, 0, 0, null, null, result );
+   }
+
+   // A syscall begins: see interrupt( ). Returns the start for end( ).
+   private static long begin( int cmd ) {
+      if ( trace != null )
+         trace.enter( );
+      return Metrics.enter( cmd );
+   }
+
+   // The syscall begin( ) returned start for is done; returns result
+   private static int end( int cmd, long start, int target, long length,
+                           int whence, String name, String mode, int result ) {
+      Metrics.exit( cmd, start );
+      if ( trace != null )
+         trace.exit( cmd, target, length, whence, name, mode, result );
+      return result;
+   }
+
+   // The calling thread's TCB, or null for a kernel thread
+   static TCB getMyTcb( ) {
+      return scheduler.getMyTcb( );
+   }
+
+   private static int fileOpen( String fileName, String mode ) {
+      TCB myTcb = scheduler.getMyTcb( );
+      if ( myTcb == null )
+         return ERROR;
+      return myTcb.getFd( fs.open( fileName, mode ) );
+   }
+
+   private static int fileRead( int fd, byte buffer[] ) {
+      FileTableEntry ftEnt = getFtEnt( fd );
+      return ( ftEnt != null ) ? fs.read( ftEnt, buffer ) : ERROR;
+   }
+
+   // the console takes bytes here too, unlike WRITE which takes a String
+   private static int fileWrite( int fd, byte buffer[] ) {
+      switch ( fd ) {
+         case STDIN:
+            System.out.println( "threaOS: cannot write to System.in" );
+            return ERROR;
+         case STDOUT:
+            System.out.write( buffer, 0, buffer.length );
+            System.out.flush( );
+            return OK;
+         case STDERR:
+            System.err.write( buffer, 0, buffer.length );
+            System.err.flush( );
+            return OK;
+      }
+      FileTableEntry ftEnt = getFtEnt( fd );
+      return ( ftEnt != null ) ? fs.write( ftEnt, buffer ) : ERROR;
+   }
+
+   private static int fileSeek( int fd, int offset, int whence ) {
+      FileTableEntry ftEnt = getFtEnt( fd );
+      return ( ftEnt != null ) ? fs.seek( ftEnt, offset, whence ) : ERROR;
+   }
+
+   // range = { offIn, fdOut, offOut, length }
+   private static int fileCopyRange( int fdIn, int[] range ) {
+      FileTableEntry in = getFtEnt( fdIn );
+      FileTableEntry out = getFtEnt( range[1] );
+      if ( in == null || out == null )
+         return ERROR;
+      return fs.copyRange( in, range[0], out, range[2], range[3] );
+   }
+
+   // Runs the operations queued in a batch since its last submit, with one
+   // TCB lookup for all of them, and returns how many succeeded
+   private static int runBatch( SyscallBatch batch ) {
+      TCB myTcb = scheduler.getMyTcb( );
+      if ( myTcb == null || batch == null )
+         return ERROR;
+      int succeeded = 0;
+      int lastFd = ERROR;          // descriptor of the previous operation
+      int lastResult = ERROR;      // its result
+      FileTableEntry ftEnt = null; // what lastFd refers to
+
+      for ( int i = batch.submitted; i < batch.count; i++ ) {
+         int op = batch.op[i];
+         if ( op == RAWREAD || op == RAWWRITE ) {
+            // run all consecutive disk operations at once
+            int end = i + 1;
+            while ( end < batch.count
+                    && ( batch.op[end] == RAWREAD || batch.op[end] == RAWWRITE ) )
+               end++;
+            succeeded += submitDisk( batch, i, end );
+            lastFd = lastResult = ERROR;
+            ftEnt = null;
+            i = end - 1;
+            continue;
+         }
+
+         int fd = batch.fd[i];
+         if ( fd == SyscallBatch.LINK ) {
+            if ( lastResult < 0 ) { // cancelled along with the previous one
+               batch.result[i] = lastResult = ERROR;
+               continue;
+            }
+            fd = lastFd;
+         }
+         if ( fd != lastFd || ftEnt == null )
+            ftEnt = myTcb.getFtEnt( fd );
+
+         int result = ERROR;
+         switch ( op ) {
+            case OPEN:
+               ftEnt = fs.open( batch.name[i], batch.mode[i] );
+               fd = result = myTcb.getFd( ftEnt );
+               if ( result < 0 )
+                  ftEnt = null;
+               break;
+            case READ:
+               if ( ftEnt != null )
+                  result = fs.read( ftEnt, batch.buffer[i] );
+               break;
+            case WRITE:
+               if ( ftEnt != null )
+                  result = fs.write( ftEnt, batch.buffer[i] );
+               break;
+            case SEEK:
+               if ( ftEnt != null )
+                  result = fs.seek( ftEnt, batch.offset[i], batch.whence[i] );
+               break;
+            case CLOSE:
+               result = close( myTcb, fd, ftEnt );
+               ftEnt = null;
+               break;
+         }
+         batch.result[i] = lastResult = result;
+         lastFd = fd;
+         if ( result >= 0 )
+            succeeded++;
+      }
+      batch.submitted = batch.count;
+      return succeeded;
+   }
+
+   // Runs the raw operations batch[start..end), in block order if that
+   // changes nothing else, holding on to the disk until the last one
+   private static int submitDisk( SyscallBatch batch, int start, int end ) {
+      int[] order = batch.order;
+      int n = 0;
+      for ( int i = start; i < end; i++ ) {
+         int blockId = batch.fd[i];
+         if ( blockId < 0 || blockId >= disk.getDiskSize( ) ) {
+            batch.result[i] = ERROR; // the disk would refuse it forever
+            continue;
+         }
+         order[n++] = i;
+      }
+
+      // sort by block (stable insertion sort), unless two operations share
+      // a buffer, which would make one depend on the other
+      boolean sortable = true;
+      for ( int i = 0; i < n && sortable; i++ )
+         for ( int j = i + 1; j < n && sortable; j++ )
+            sortable = batch.buffer[order[i]] != batch.buffer[order[j]];
+      if ( sortable ) {
+         for ( int i = 1; i < n; i++ ) {
+            int slot = order[i];
+            int j = i;
+            for ( ; j > 0 && batch.fd[order[j - 1]] > batch.fd[slot]; j-- )
+               order[j] = order[j - 1];
+            order[j] = slot;
+         }
+      }
+
+      for ( int i = 0; i < n; i++ ) {
+         int slot = order[i];
+         diskCommand( batch.op[slot], batch.fd[slot], batch.buffer[slot],
+                      i == n - 1 );
+         batch.result[slot] = OK;
+      }
+      return n;
+   }
+
+   // Closes fd, which refers to ftEnt
+   private static int close( TCB myTcb, int fd, FileTableEntry ftEnt ) {
+      // the fd goes first: if the thread shares its fds with another, it
+      // gets a copy that holds ftEnt once more, and that hold is the one
+      // fs.close( ) lets go of
+      if ( ftEnt == null || myTcb.returnFd( fd ) != ftEnt )
+         return ERROR;
+      if ( fs.close( ftEnt ) == false )
+         return ERROR;
+      return OK;
+   }
+
+   // The caller's open file behind fd, or null. The console fds have none.
+   private static FileTableEntry getFtEnt( int fd ) {
+      TCB myTcb = scheduler.getMyTcb( );
+      return ( myTcb != null ) ? myTcb.getFtEnt( fd ) : null;
+   }
+
+   private static void initVirtualThreads( ) {
       try {
-         //get the user thread class from its name
-         Class thrClass = Class.forName( thrName ); 
-         if ( args.length == 1 ) // no arguments
-            thrObj = thrClass.newInstance( ); // instantiate this class obj
-         else {                  // some arguments
-            // copy all arguments into thrArgs[] and make a new constructor
-            // argument object from thrArgs[]
-            String thrArgs[] = new String[ args.length - 1 ];
-            for ( int i = 1; i < args.length; i++ )
-               thrArgs[i - 1] = args[i];
-            Object[] constructorArgs = new Object[] { thrArgs };
-
-            // locate this class object's constructors
-            Constructor thrConst 
-               = thrClass.getConstructor( new Class[] {String[].class} );
-
-            // instantiate this class object by calling this constructor
-            // with arguments
-            thrObj = thrConst.newInstance( constructorArgs );
+         virtualBuilder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+         virtualUnstarted = Class.forName( "java.lang.Thread$Builder" )
+            .getMethod( "unstarted", Runnable.class );
+      } catch ( Exception e ) {
+         virtualBuilder = null;
+         virtualUnstarted = null;
+         SysLib.cerr( "threadOS: virtual threads are not supported by this JVM, "
+                      + "using platform threads\n" );
+      }
+   }
+
+   // Creates the (unstarted) thread a user program runs on
+   private static Thread newThread( Runnable program ) {
+      if ( virtualUnstarted != null ) {
+         try {
+            return ( Thread )virtualUnstarted.invoke( virtualBuilder, program );
+         } catch ( Exception e ) {
+            System.out.println( e );
          }
+      }
+      return new Thread( program );
+   }
+
+   // Spawning a new thread
+   private static int sysExec( String args[] ) {
+      try {
+         // instantiate the user program from its cached constructor
+         // (args[0] has a thread name, the rest are its arguments)
+         Runnable thrObj = ProgramRegistry.newInstance( args );
+
          // instantiate a new thread of this object
-         Thread t = new Thread( (Runnable)thrObj );
+         Thread t = newThread( thrObj );
 
          // add this thread into scheduler's circular list.
          TCB newTcb = scheduler.addThread( t );
-         return ( newTcb != null ) ? newTcb.getTid( ) : ERROR;
+         if ( newTcb == null )
+            return ERROR;
+         Metrics.threadsSpawned.increment( );
+         return newTcb.getTid( );
       }
       catch ( ClassNotFoundException e ) {
          System.out.println( e );
@@ -297,13 +797,23 @@ public class Kernel
          System.out.println( e );
          return ERROR;
       }
-      catch ( IllegalAccessException e ) {
-         System.out.println( e );
-         return ERROR;
-      }
       catch ( InvocationTargetException e ) {
          System.out.println( e );
          return ERROR;
       }
    }
+
+   // Resolves the comma-separated programs of the preload boot option, so
+   // their first exec is as fast as any other
+   private static void preloadPrograms( String names ) {
+      StringTokenizer token = new StringTokenizer( names, "," );
+      while ( token.hasMoreTokens( ) ) {
+         String name = token.nextToken( );
+         try {
+            ProgramRegistry.preload( name );
+         } catch ( Exception e ) {
+            SysLib.cerr( "threadOS: cannot preload " + name + ": " + e + "\n" );
+         }
+      }
+   }
 }
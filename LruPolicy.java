@@ -0,0 +1,40 @@
+// Least recently used: frames are kept in recency order and the victim is
+// the least recent one not in use. Every hit moves its frame to the front,
+// so hits need the stripe lock.
+public class LruPolicy implements CachePolicy {
+   private final FrameList recency;
+   private final int[] blockOf; // what each frame holds, as far as we know
+
+   public LruPolicy( int size ) {
+      recency = new FrameList( size );
+      blockOf = new int[size];
+      for ( int frame = 0; frame < size; frame++ ) {
+         recency.addFirst( frame ); // empty frames go first
+         blockOf[frame] = -1;
+      }
+   }
+
+   public boolean lockFreeHits( ) {
+      return false;
+   }
+
+   public void hit( int frame, int block ) {
+      if ( blockOf[frame] == block )
+         recency.moveToFront( frame );
+   }
+
+   public int victim( Frames frames, int block ) {
+      return recency.claimLast( frames );
+   }
+
+   public void loaded( int frame, int block ) {
+      blockOf[frame] = block;
+      recency.moveToFront( frame );
+   }
+
+   public void removed( int frame ) {
+      blockOf[frame] = -1;
+      recency.remove( frame );
+      recency.addLast( frame ); // the first to be reused
+   }
+}
@@ -0,0 +1,36 @@
+// Lists the files: inode number, size in bytes, inode flag and name, a
+// page of them per SysLib.readdir( ) call (see DirListing), and no file is
+// opened to learn its size.
+// Usage: l Ls
+public class Ls extends Thread {
+   private final static int pageSize = 64;
+
+   public Ls( ) {
+   }
+
+   public Ls( String args[] ) {
+   }
+
+   public void run( ) {
+      DirListing listing = new DirListing( pageSize );
+      StringBuilder out = new StringBuilder( );
+      int files = 0;
+      long bytes = 0;
+      int n;
+      while ( ( n = SysLib.readdir( listing ) ) > 0 ) {
+         for ( int i = 0; i < n; i++ ) {
+            out.append( listing.iNumber( i ) ).append( '\t' )
+               .append( listing.size( i ) ).append( '\t' )
+               .append( listing.flag( i ) ).append( '\t' )
+               .append( listing.name( i ) ).append( '\n' );
+            bytes += listing.size( i );
+         }
+         files += n;
+      }
+      if ( n < 0 )
+         SysLib.cerr( "Ls: readdir failed\n" );
+      out.append( files ).append( " files, " ).append( bytes ).append( " bytes\n" );
+      SysLib.cout( out.toString( ) );
+      SysLib.exit( );
+   }
+}
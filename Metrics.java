@@ -0,0 +1,241 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Kernel-wide counters and histograms, cheap enough to leave on. Counters
+// are LongAdders, which stripe themselves once threads contend for them;
+// a Histogram gives each thread one of a few stripes of buckets to count
+// in. Kernel, Disk, Cache, SuperBlock, FileTable and Scheduler count into
+// the fields below, and SysLib.stats( ) reports them all (see report( )).
+//
+// Every syscall is counted, but only one in timeSample, picked at random,
+// is timed: the two System.nanoTime( ) calls cost more than a fast syscall
+// does. Boot options: timesample=N (1 times them all), metrics=off.
+public final class Metrics {
+   private Metrics( ) {
+   }
+
+   // Counts of values in log-linear buckets, as HdrHistogram keeps them:
+   // values below 16 exactly, every power of two above that in 16 equal
+   // buckets, so a quantile read back is within 1/16 of the true value.
+   // Values of 2^40 and more count as 2^40 - 1 (18 minutes in ns).
+   public static final class Histogram {
+      private final static int subBits = 4;
+      private final static int subCount = 1 << subBits;
+      private final static int maxBits = 40;
+      private final static int bucketCount = ( maxBits - subBits + 1 ) * subCount;
+      private final static int sumSlot = bucketCount; // after the buckets
+
+      private final AtomicLongArray[] stripes;
+
+      public Histogram( ) {
+         stripes = new AtomicLongArray[stripeCount];
+         for ( int i = 0; i < stripeCount; i++ )
+            stripes[i] = new AtomicLongArray( bucketCount + 1 );
+      }
+
+      private static int bucket( long value ) {
+         if ( value < subCount )
+            return ( int )Math.max( value, 0 );
+         value = Math.min( value, ( 1L << maxBits ) - 1 );
+         int exponent = 63 - Long.numberOfLeadingZeros( value );
+         int sub = ( int )( value >>> ( exponent - subBits ) ) & ( subCount - 1 );
+         return ( exponent - subBits + 1 ) * subCount + sub;
+      }
+
+      // the largest value that falls into bucket
+      private static long highest( int bucket ) {
+         if ( bucket < subCount )
+            return bucket;
+         int shift = bucket / subCount - 1;
+         long lowest = ( long )( subCount + bucket % subCount ) << shift;
+         return lowest + ( 1L << shift ) - 1;
+      }
+
+      public void record( long value ) {
+         AtomicLongArray stripe
+            = stripes[( int )Thread.currentThread( ).getId( ) & ( stripeCount - 1 )];
+         stripe.getAndIncrement( bucket( value ) );
+         stripe.getAndAdd( sumSlot, value );
+      }
+
+      // the buckets of all stripes added up, and their sum last. Counting
+      // goes on meanwhile, so the totals are only about consistent.
+      long[] snapshot( ) {
+         long[] total = new long[bucketCount + 1];
+         for ( int s = 0; s < stripeCount; s++ )
+            for ( int i = 0; i <= bucketCount; i++ )
+               total[i] += stripes[s].get( i );
+         return total;
+      }
+
+      // the value that a fraction q of the snapshot's values don't exceed
+      static long quantile( long[] snapshot, long count, double q ) {
+         long rank = Math.max( ( long )Math.ceil( q * count ), 1 );
+         long seen = 0;
+         for ( int i = 0; i < bucketCount; i++ )
+            if ( ( seen += snapshot[i] ) >= rank )
+               return highest( i );
+         return 0;
+      }
+   }
+
+   // one stripe per CPU, up to 8, rounded to a power of two
+   private final static int stripeCount = Integer.highestOneBit(
+      Math.min( Math.max( Runtime.getRuntime( ).availableProcessors( ), 1 ), 8 ) * 2 - 1 );
+
+   private static volatile boolean enabled = true;
+   private static volatile int sampleMask = 15; // timeSample - 1
+
+   // syscall calls, and the latency in ns of the timed ones, by Kernel
+   // syscall number
+   private final static String[] syscallNames = {
+      "boot", "exec", "join", "exit", "sleep", "rawread", "rawwrite", "sync",
+      "read", "write", "cread", "cwrite", "csync", "cflush", "open", "close",
+      "size", "seek", "format", "delete", "blksize", "submit", "stats", "fsck",
+      "clone", "copyrange", "punchhole", "truncate", "readdir" };
+   private final static LongAdder[] syscallCalls = new LongAdder[syscallNames.length];
+   private final static Histogram[] syscalls = new Histogram[syscallNames.length];
+   static {
+      for ( int i = 0; i < syscalls.length; i++ ) {
+         syscallCalls[i] = new LongAdder( );
+         syscalls[i] = new Histogram( );
+      }
+   }
+
+   // the disk: commands waiting for or holding it, as each new one sees
+   // them (itself included), and how far the arm moved for each
+   private final static AtomicInteger diskQueued = new AtomicInteger( );
+   public final static Histogram diskQueueDepth = new Histogram( );
+   public final static Histogram diskSeekTracks = new Histogram( );
+   public final static LongAdder diskReads = new LongAdder( );
+   public final static LongAdder diskWrites = new LongAdder( );
+   public final static LongAdder diskSyncs = new LongAdder( );
+
+   // the file system
+   public final static LongAdder blocksAllocated = new LongAdder( );
+   public final static LongAdder blocksFreed = new LongAdder( );
+   public final static LongAdder blocksCopied = new LongAdder( ); // on writes to blocks clones share
+   public final static Histogram fileTableWaitNanos = new Histogram( ); // falloc waits for ffree
+
+   // threads
+   public final static LongAdder threadsSpawned = new LongAdder( );
+   public final static LongAdder threadsExited = new LongAdder( );
+   public final static LongAdder contextSwitches = new LongAdder( );
+   public final static LongAdder preemptions = new LongAdder( ); // quantum used up
+
+   // the name the report gives syscall cmd
+   public static String syscallName( int cmd ) {
+      return ( cmd >= 0 && cmd < syscallNames.length ) ? syscallNames[cmd] : "" + cmd;
+   }
+
+   // on false, nothing is counted at all; timeSample is rounded down to a
+   // power of two
+   public static void configure( boolean on, int timeSample ) {
+      enabled = on;
+      sampleMask = Integer.highestOneBit( Math.max( timeSample, 1 ) ) - 1;
+   }
+
+   // Syscall cmd begins. Returns the time to hand to exit( ), or 0 if this
+   // call is not timed.
+   public static long enter( int cmd ) {
+      if ( !enabled || cmd < 0 || cmd >= syscalls.length )
+         return 0;
+      syscallCalls[cmd].increment( );
+      if ( ( ThreadLocalRandom.current( ).nextInt( ) & sampleMask ) != 0 )
+         return 0;
+      return System.nanoTime( );
+   }
+
+   // syscall cmd, which enter( ) returned start for, is done
+   public static void exit( int cmd, long start ) {
+      if ( start != 0 )
+         syscalls[cmd].record( System.nanoTime( ) - start );
+   }
+
+   // A disk command wants the disk; every diskEnter needs a diskExit
+   public static void diskEnter( ) {
+      diskQueueDepth.record( diskQueued.incrementAndGet( ) );
+   }
+
+   public static void diskExit( ) {
+      diskQueued.decrementAndGet( );
+   }
+
+   // Appends every metric to out as one "name{labels} value" line, in the
+   // text format Prometheus scrapes. A histogram becomes a summary: its
+   // quantiles, then name_sum and name_count. cache is the kernel's cache
+   // right now, whose counters it keeps itself.
+   public static void report( StringBuffer out, Cache cache ) {
+      for ( int i = 0; i < syscalls.length; i++ ) {
+         long calls = syscallCalls[i].sum( );
+         if ( calls > 0 )
+            summary( out, "syscall_latency_ns", "call=\"" + syscallNames[i] + "\"",
+                     syscalls[i], calls );
+      }
+
+      line( out, "disk_queued", "", diskQueued.get( ) );
+      summary( out, "disk_queue_depth", "", diskQueueDepth, -1 );
+      summary( out, "disk_seek_tracks", "", diskSeekTracks, -1 );
+      line( out, "disk_reads", "", diskReads.sum( ) );
+      line( out, "disk_writes", "", diskWrites.sum( ) );
+      line( out, "disk_syncs", "", diskSyncs.sum( ) );
+
+      if ( cache != null ) {
+         long hits = cache.getHits( );
+         long misses = cache.getMisses( );
+         line( out, "cache_hits", "", hits );
+         line( out, "cache_misses", "", misses );
+         out.append( "cache_hit_ratio " )
+            .append( hits + misses == 0 ? 0.0 : ( double )hits / ( hits + misses ) )
+            .append( '\n' );
+         line( out, "cache_evictions", "", cache.getEvictions( ) );
+         line( out, "cache_writebacks", "", cache.getWriteBacks( ) );
+         line( out, "cache_dirty", "", cache.getDirtyCount( ) );
+      }
+
+      line( out, "fs_blocks_allocated", "", blocksAllocated.sum( ) );
+      line( out, "fs_blocks_freed", "", blocksFreed.sum( ) );
+      line( out, "fs_blocks_copied", "", blocksCopied.sum( ) );
+      summary( out, "filetable_wait_ns", "", fileTableWaitNanos, -1 );
+
+      line( out, "threads_spawned", "", threadsSpawned.sum( ) );
+      line( out, "threads_exited", "", threadsExited.sum( ) );
+      line( out, "sched_context_switches", "", contextSwitches.sum( ) );
+      line( out, "sched_preemptions", "", preemptions.sum( ) );
+   }
+
+   private final static double[] quantiles = { 0.5, 0.9, 0.99, 0.999, 1.0 };
+
+   // The lines of one histogram. If it holds a sample of the values, calls
+   // is how many there were in all, and the sum is scaled up to match;
+   // otherwise calls is -1.
+   private static void summary( StringBuffer out, String name, String labels,
+                                Histogram histogram, long calls ) {
+      long[] snapshot = histogram.snapshot( );
+      long sampled = 0;
+      for ( int i = 0; i < Histogram.bucketCount; i++ )
+         sampled += snapshot[i];
+      long count = sampled;
+      long sum = snapshot[Histogram.sumSlot];
+      if ( calls >= 0 ) {
+         sum = ( sampled == 0 ) ? 0 : ( long )( ( double )sum * calls / sampled );
+         count = calls;
+      }
+      String sep = labels.isEmpty( ) ? "" : ",";
+      for ( int i = 0; i < quantiles.length; i++ )
+         line( out, name, labels + sep + "quantile=\"" + quantiles[i] + "\"",
+               Histogram.quantile( snapshot, sampled, quantiles[i] ) );
+      line( out, name + "_sum", labels, sum );
+      line( out, name + "_count", labels, count );
+   }
+
+   private static void line( StringBuffer out, String name, String labels,
+                             long value ) {
+      out.append( name );
+      if ( !labels.isEmpty( ) )
+         out.append( '{' ).append( labels ).append( '}' );
+      out.append( ' ' ).append( value ).append( '\n' );
+   }
+}
@@ -0,0 +1,88 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The user programs the kernel has loaded. Each program class is resolved
+// once, on its first exec or at boot, and its constructors are kept as
+// MethodHandles, so later execs of it skip Class.forName and reflection.
+// Failed lookups aren't remembered: the class may show up later.
+public class ProgramRegistry {
+   private final static MethodType noArgs
+      = MethodType.methodType( Runnable.class );
+   private final static MethodType withArgs
+      = MethodType.methodType( Runnable.class, String[].class );
+
+   private static class Program {
+      MethodHandle noArgsConstructor;   // Program( ), or null
+      MethodHandle withArgsConstructor; // Program( String args[] ), or null
+   }
+
+   private final static ConcurrentHashMap<String, Program> programs
+      = new ConcurrentHashMap<String, Program>( );
+
+   // Resolves a program ahead of its first exec
+   public static void preload( String name )
+      throws ClassNotFoundException, InstantiationException {
+      lookup( name );
+   }
+
+   // Creates the program object for args[0], passing it args[1..] if there
+   // are any. Throws what the reflective calls used to throw: an exception
+   // thrown by the constructor arrives wrapped in an
+   // InvocationTargetException.
+   public static Runnable newInstance( String args[] )
+      throws ClassNotFoundException, NoSuchMethodException,
+             InstantiationException, InvocationTargetException {
+      Program program = lookup( args[0] );
+      try {
+         if ( args.length == 1 ) { // no arguments
+            if ( program.noArgsConstructor == null )
+               throw new NoSuchMethodException( args[0] + ".<init>()" );
+            return ( Runnable )program.noArgsConstructor.invokeExact( );
+         }
+         if ( program.withArgsConstructor == null )
+            throw new NoSuchMethodException( args[0] + ".<init>([Ljava.lang.String;)" );
+         String thrArgs[] = Arrays.copyOfRange( args, 1, args.length );
+         return ( Runnable )program.withArgsConstructor.invokeExact( thrArgs );
+      } catch ( NoSuchMethodException e ) {
+         throw e;
+      } catch ( Throwable e ) {
+         throw new InvocationTargetException( e );
+      }
+   }
+
+   private static Program lookup( String name )
+      throws ClassNotFoundException, InstantiationException {
+      Program program = programs.get( name );
+      if ( program != null )
+         return program;
+
+      Class<?> thrClass = Class.forName( name );
+      if ( !Runnable.class.isAssignableFrom( thrClass )
+           || Modifier.isAbstract( thrClass.getModifiers( ) ) )
+         throw new InstantiationException( name + " is not a program" );
+      program = new Program( );
+      program.noArgsConstructor = constructor( thrClass, noArgs );
+      program.withArgsConstructor = constructor( thrClass, withArgs );
+      Program raced = programs.putIfAbsent( name, program );
+      return ( raced != null ) ? raced : program;
+   }
+
+   // the constructor of thrClass with the parameters of type, adapted to
+   // return a Runnable, or null if there is none the kernel may call
+   private static MethodHandle constructor( Class<?> thrClass, MethodType type ) {
+      try {
+         return MethodHandles.lookup( )
+            .findConstructor( thrClass, type.changeReturnType( void.class ) )
+            .asType( type );
+      } catch ( NoSuchMethodException e ) {
+         return null;
+      } catch ( IllegalAccessException e ) {
+         return null;
+      }
+   }
+}
@@ -0,0 +1,113 @@
+import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A condition of a SyncQueue. Each sleeping thread has its own Waiter and
+// is woken with LockSupport.unpark, so a wakeup goes straight to one chosen
+// thread, the woken value is handed over directly, and a virtual thread
+// parks without pinning its carrier. The lock only guards the lists; no
+// thread ever sleeps while holding it.
+public class QueueNode {
+    private static class Waiter {
+        final Thread thread = Thread.currentThread( );
+        volatile boolean woken = false;
+        int pid; // written before woken is set
+    }
+
+    // a thread sleeps in one place at a time, so it can keep its Waiter
+    private final static ThreadLocal<Waiter> myWaiter
+        = ThreadLocal.withInitial( Waiter::new );
+
+    private final ReentrantLock lock = new ReentrantLock( );
+    private ArrayDeque<Waiter> waiters; // sleeping threads, oldest first
+    private ArrayDeque<Integer> pidQueue; // wakeups that came before anyone slept
+
+    public QueueNode( ) {
+        waiters = new ArrayDeque<Waiter>( );
+        pidQueue = new ArrayDeque<Integer>( );
+    }
+
+    // the caller's Waiter, ready to be queued (call with the lock held)
+    private static Waiter waiter( ) {
+        Waiter me = myWaiter.get( );
+        me.woken = false;
+        return me;
+    }
+
+    private static void park( Waiter me ) {
+        while ( !me.woken )
+            LockSupport.park( me );
+    }
+
+    // Sleeps until wakeup( ) is called, and returns its pid. A wakeup that
+    // came earlier is consumed right away.
+    public int sleep( ) {
+        Waiter me;
+        lock.lock( );
+        try {
+            if ( !pidQueue.isEmpty( ) )
+                return pidQueue.poll( );
+            me = waiter( );
+            waiters.add( me );
+        } finally {
+            lock.unlock( );
+        }
+        park( me );
+        return me.pid;
+    }
+
+    // Wakes the oldest sleeper, or remembers the wakeup if there is none
+    public void wakeup( int pid ) {
+        Waiter w;
+        lock.lock( );
+        try {
+            w = waiters.poll( );
+            if ( w == null ) {
+                pidQueue.add( pid );
+                return;
+            }
+        } finally {
+            lock.unlock( );
+        }
+        w.pid = pid;
+        w.woken = true;
+        LockSupport.unpark( w.thread );
+    }
+
+    // Sleeps until done returns true. done is evaluated under the lock, and
+    // whoever makes it true calls signal( ) afterwards, so no wakeup is lost
+    // and none is left behind for a later sleeper.
+    public void sleepUntil( BooleanSupplier done ) {
+        while ( true ) {
+            Waiter me;
+            lock.lock( );
+            try {
+                if ( done.getAsBoolean( ) )
+                    return;
+                me = waiter( );
+                waiters.add( me );
+            } finally {
+                lock.unlock( );
+            }
+            park( me );
+        }
+    }
+
+    // Wakes the oldest thread in sleepUntil( ), if any. Returns false when
+    // nobody was waiting.
+    public boolean signal( ) {
+        Waiter w;
+        lock.lock( );
+        try {
+            w = waiters.poll( );
+        } finally {
+            lock.unlock( );
+        }
+        if ( w == null )
+            return false;
+        w.woken = true;
+        LockSupport.unpark( w.thread );
+        return true;
+    }
+}
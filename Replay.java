@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs a trace that the boot option trace=<file> recorded (see
+// TraceRecorder) against the kernel as it is booted now, so that one
+// workload can be compared across cache and disk configurations. Each
+// thread of the trace is replayed by a thread of its own, in its order.
+//    timed: every syscall is issued no earlier than it was in the trace,
+//           counted from the start of the replay
+//    fast:  they are issued back to back
+// Reports the throughput and, per kind of syscall, latency percentiles
+// next to those the trace recorded. In timed mode a syscall issued late
+// counts its latency from when it was due, so a replay that falls behind
+// shows it rather than hiding it.
+// Block writes write zeros, and file syscalls act on the files they name:
+// replay a trace that wrote blocks on a copy of the DISK. Block syscalls
+// are skipped if the block size is not the trace's.
+// Usage: l Replay tracefile [timed|fast]
+public class Replay extends Thread {
+   private final static int maxOp = 32; // above any Kernel syscall number
+
+   // shared with the children, which the parent waits for before reading
+   private static TraceRecorder.Trace trace;
+   private static List<TraceRecorder.Record[]> threads; // by child
+   private static boolean timed;
+   private static boolean blockOps;  // block syscalls are replayed
+   private static long startNanos;   // when the replay began
+   private final static Metrics.Histogram[] latency = new Metrics.Histogram[maxOp];
+   private final static Metrics.Histogram[] traced = new Metrics.Histogram[maxOp];
+   private final static AtomicLong[] counts = new AtomicLong[maxOp];
+   private final static AtomicLong skipped = new AtomicLong( );
+
+   private String fileName;
+   private int child = -1;
+
+   public Replay( String args[] ) {
+      if ( args[0].equals( "child" ) ) { // spawned by the replay itself
+         child = Integer.parseInt( args[1] );
+         return;
+      }
+      fileName = args[0];
+      timed = args.length < 2 || args[1].equals( "timed" );
+   }
+
+   public void run( ) {
+      if ( child >= 0 )
+         replay( threads.get( child ) );
+      else
+         runAll( );
+      SysLib.exit( );
+   }
+
+   private void runAll( ) {
+      try {
+         trace = TraceRecorder.read( fileName );
+      } catch ( IOException e ) {
+         SysLib.cerr( "Replay: " + e + "\n" );
+         return;
+      }
+      blockOps = trace.blockSize == SysLib.blockSize( );
+      if ( !blockOps )
+         SysLib.cout( "block size " + SysLib.blockSize( ) + ", the trace's "
+                      + trace.blockSize + ": skipping block syscalls\n" );
+
+      // one child per thread of the trace, with its records in file order,
+      // which for one thread is the order they were made in
+      Map<Integer, List<TraceRecorder.Record>> byTid
+         = new LinkedHashMap<Integer, List<TraceRecorder.Record>>( );
+      for ( TraceRecorder.Record r : trace.records )
+         byTid.computeIfAbsent( r.tid, tid -> new ArrayList<TraceRecorder.Record>( ) )
+            .add( r );
+      threads = new ArrayList<TraceRecorder.Record[]>( );
+      for ( List<TraceRecorder.Record> records : byTid.values( ) )
+         threads.add( records.toArray( new TraceRecorder.Record[0] ) );
+
+      for ( int op = 0; op < maxOp; op++ ) {
+         latency[op] = new Metrics.Histogram( );
+         traced[op] = new Metrics.Histogram( );
+         counts[op] = new AtomicLong( );
+      }
+      skipped.set( 0 );
+      long traceMicros = 0;
+      for ( TraceRecorder.Record r : trace.records ) {
+         traced[r.op & ( maxOp - 1 )].record( r.micros * 1000L );
+         traceMicros = Math.max( traceMicros, r.start + r.micros );
+      }
+
+      startNanos = System.nanoTime( );
+      for ( int i = 0; i < threads.size( ); i++ )
+         SysLib.exec( new String[] { "Replay", "child", "" + i } );
+      for ( int i = 0; i < threads.size( ); i++ )
+         SysLib.join( );
+      long elapsed = System.nanoTime( ) - startNanos;
+      report( elapsed, traceMicros );
+   }
+
+   // Replays the records of one thread of the trace
+   private void replay( TraceRecorder.Record[] records ) {
+      Map<Integer, Integer> fds = new HashMap<Integer, Integer>( ); // traced -> ours
+      Map<Long, byte[]> buffers = new HashMap<Long, byte[]>( );     // by length
+      byte[] block = new byte[SysLib.blockSize( )];
+      byte[] zeros = new byte[SysLib.blockSize( )];
+      for ( TraceRecorder.Record r : records ) {
+         long due = startNanos + r.start * 1000;
+         if ( timed ) {
+            long wait = due - System.nanoTime( );
+            if ( wait >= 1000000 )
+               SysLib.sleep( ( int )( wait / 1000000 ) );
+         }
+         long issued = System.nanoTime( );
+         Integer fd = fds.get( r.target );
+         boolean done = true;
+         switch ( r.op ) {
+            case Kernel.RAWREAD:
+            case Kernel.CREAD:
+            case Kernel.RAWWRITE:
+            case Kernel.CWRITE:
+               if ( !blockOps || r.target < 0 || r.target >= trace.diskBlocks )
+                  done = false;
+               else if ( r.op == Kernel.RAWREAD )
+                  SysLib.rawread( r.target, block );
+               else if ( r.op == Kernel.CREAD )
+                  SysLib.cread( r.target, block );
+               else if ( r.op == Kernel.RAWWRITE )
+                  SysLib.rawwrite( r.target, zeros );
+               else
+                  SysLib.cwrite( r.target, zeros );
+               break;
+            case Kernel.OPEN:
+               int ours = SysLib.open( r.name, r.mode );
+               if ( r.target >= 0 && ours >= 0 )
+                  fds.put( r.target, ours );
+               break;
+            case Kernel.DELETE:
+               SysLib.delete( r.name );
+               break;
+            case Kernel.CLOSE:
+               if ( done = ( fd != null ) ) {
+                  fds.remove( r.target );
+                  SysLib.close( fd );
+               }
+               break;
+            case Kernel.READ:
+            case Kernel.WRITE:
+               if ( done = ( fd != null && r.length >= 0 ) ) {
+                  byte[] buffer = buffers.computeIfAbsent( r.length,
+                                                           n -> new byte[( int )( long )n] );
+                  if ( r.op == Kernel.READ )
+                     SysLib.read( fd, buffer );
+                  else
+                     SysLib.write( fd, buffer );
+               }
+               break;
+            case Kernel.SEEK:
+               if ( done = ( fd != null ) )
+                  SysLib.seek( fd, ( int )r.length, r.whence );
+               break;
+            case Kernel.SIZE:
+               if ( done = ( fd != null ) )
+                  SysLib.fsize( fd );
+               break;
+            default:
+               done = false;
+         }
+         long end = System.nanoTime( );
+         if ( !done ) { // opened before the trace began, or not replayable
+            skipped.incrementAndGet( );
+            continue;
+         }
+         counts[r.op].incrementAndGet( );
+         latency[r.op].record( end - ( timed ? Math.min( due, issued ) : issued ) );
+      }
+      for ( Integer fd : fds.values( ) )
+         SysLib.close( fd );
+   }
+
+   private static String micros( long[] snapshot, long count, double q ) {
+      return String.format( " %10.1f", Metrics.Histogram.quantile( snapshot, count, q ) / 1000.0 );
+   }
+
+   private void report( long elapsedNanos, long traceMicros ) {
+      long total = 0;
+      for ( int op = 0; op < maxOp; op++ )
+         total += counts[op].get( );
+      StringBuilder out = new StringBuilder( );
+      out.append( ( timed ? "timed" : "fast" ) + " replay of " + trace.records.size( )
+                  + " syscalls by " + threads.size( ) + " threads: " + total
+                  + " replayed, " + skipped.get( ) + " skipped\n" );
+      out.append( elapsedNanos / 1000000 + " ms (the trace took " + traceMicros / 1000
+                  + " ms), " + total * 1000000000L / Math.max( elapsedNanos, 1 )
+                  + " syscalls/sec\n" );
+      out.append( String.format( "%-9s %8s %10s %10s %10s %10s %10s | %10s %10s\n",
+                                 "us", "count", "p50", "p90", "p99", "p99.9", "max",
+                                 "trace p50", "trace p99" ) );
+      for ( int op = 0; op < maxOp; op++ ) {
+         long count = counts[op].get( );
+         if ( count == 0 )
+            continue;
+         long[] ours = latency[op].snapshot( );
+         long[] theirs = traced[op].snapshot( );
+         long theirCount = 0;
+         for ( TraceRecorder.Record r : trace.records )
+            if ( r.op == op )
+               theirCount++;
+         out.append( String.format( "%-9s %8d", Metrics.syscallName( op ), count ) )
+            .append( micros( ours, count, 0.5 ) ).append( micros( ours, count, 0.9 ) )
+            .append( micros( ours, count, 0.99 ) ).append( micros( ours, count, 0.999 ) )
+            .append( micros( ours, count, 1.0 ) ).append( " |" )
+            .append( micros( theirs, theirCount, 0.5 ) )
+            .append( micros( theirs, theirCount, 0.99 ) ).append( '\n' );
+      }
+      SysLib.cout( out.toString( ) );
+   }
+}
@@ -1,61 +1,103 @@
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Scheduler extends Thread
 {
-    private Vector queue;
+    // Virtual CPUs. Each one has its own run queues, one per priority
+    // level, and its own dispatch loop, so up to cpus.length threads hold
+    // the "running" priority at once. Round robin uses a single level; the
+    // multilevel feedback queue demotes a thread that uses up its whole
+    // quantum and periodically boosts everyone back to level 0.
+    private Processor[] cpus;
+    private int levels;
     private int timeSlice;
     private static final int DEFAULT_TIME_SLICE = 1000;
+    private static final int MLFQ_LEVELS = 3;
+
+    // how often, in time slices, all threads are boosted to the top level
+    private static final int BOOST_PERIOD = 10;
+
+    private class Processor {
+        final int id;
+        final ArrayDeque<TCB>[] queue; // guarded by this Processor
+        TCB running = null;     // the TCB given this CPU
+        boolean yielded = false;// running blocked or exited before its quantum ended
+        long lastBoost = 0;
+
+        Processor( int cpuId ) {
+            id = cpuId;
+            @SuppressWarnings( "unchecked" )
+            ArrayDeque<TCB>[] queues = ( ArrayDeque<TCB>[] )new ArrayDeque<?>[levels];
+            queue = queues;
+            for ( int i = 0; i < levels; i++ )
+                queue[i] = new ArrayDeque<TCB>( );
+        }
+
+        // # of TCBs queued; read without the lock, so only approximate
+        int load( ) {
+            int n = 0;
+            for ( int i = 0; i < levels; i++ )
+                n += queue[i].size( );
+            return n;
+        }
+    }
 
     // New data added to p161 
     private boolean[] tids; // Indicate which ids have been used
     private static final int DEFAULT_MAX_THREADS = 10000;
 
+    // Unused ids in the order they become available, kept as a circular
+    // queue so that allocating and returning an id is O(1)
+    private int[] freeTids;
+    private int freeHead = 0;
+    private int freeCount = 0;
+
+    // Each thread's TCB, so the syscall path finds the caller's TCB without
+    // scanning (or locking) the run queue
+    private Map<Thread, TCB> tcbTable;
+
     // A new feature added to p161 
     // Allocate an ID array, each element indicating if that id has been used
-    private int nextId = 0;
     private void initTid( int maxThreads ) {
         tids = new boolean[maxThreads];
-        for ( int i = 0; i < maxThreads; i++ )
+        freeTids = new int[maxThreads];
+        for ( int i = 0; i < maxThreads; i++ ) {
             tids[i] = false;
+            freeTids[i] = i;
+        }
+        freeHead = 0;
+        freeCount = maxThreads;
+        tcbTable = new ConcurrentHashMap<Thread, TCB>( );
     }
 
     // A new feature added to p161 
-    // Search an available thread ID and provide a new thread with this ID
-    private int getNewTid( ) {
-        for ( int i = 0; i < tids.length; i++ ) {
-            int tentative = ( nextId + i ) % tids.length;
-            if ( tids[tentative] == false ) {
-                tids[tentative] = true;
-                nextId = ( tentative + 1 ) % tids.length;
-                return tentative;
-            }
-        }
-        return -1;
+    // Provide a new thread with the least recently used available thread ID
+    private synchronized int getNewTid( ) {
+        if ( freeCount == 0 )
+            return -1;
+        int tid = freeTids[freeHead];
+        freeHead = ( freeHead + 1 ) % freeTids.length;
+        freeCount--;
+        tids[tid] = true;
+        return tid;
     }
 
     // A new feature added to p161 
     // Return the thread ID and set the corresponding tids element to be unused
-    private boolean returnTid( int tid ) {
+    private synchronized boolean returnTid( int tid ) {
         if ( tid >= 0 && tid < tids.length && tids[tid] == true ) {
             tids[tid] = false;
+            freeTids[( freeHead + freeCount ) % freeTids.length] = tid;
+            freeCount++;
             return true;
         }
         return false;
     }
 
     // A new feature added to p161 
-    // Retrieve the current thread's TCB from the queue
+    // Retrieve the current thread's TCB
     public TCB getMyTcb( ) {
-        Thread myThread = Thread.currentThread( ); // Get my thread object
-        synchronized( queue ) {
-            for ( int i = 0; i < queue.size( ); i++ ) {
-            TCB tcb = ( TCB )queue.elementAt( i );
-            Thread thread = tcb.getThread( );
-            if ( thread == myThread ) // if this is my TCB, return it
-                return tcb;
-            }
-        }
-        return null;
+        return tcbTable.get( Thread.currentThread( ) );
     }
 
     // A new feature added to p161 
@@ -64,30 +106,54 @@ public class Scheduler extends Thread
         return tids.length;
     }
 
+    private void initQueue( int nCpus, int nLevels ) {
+        levels = nLevels;
+        cpus = new Processor[nCpus];
+        for ( int i = 0; i < nCpus; i++ )
+            cpus[i] = new Processor( i );
+    }
+
     public Scheduler( ) {
-        timeSlice = DEFAULT_TIME_SLICE;
-        queue = new Vector( );
-        initTid( DEFAULT_MAX_THREADS );
+        this( DEFAULT_TIME_SLICE, DEFAULT_MAX_THREADS, false, 1 );
     }
 
     public Scheduler( int quantum ) {
-        timeSlice = quantum;
-        queue = new Vector( );
-        initTid( DEFAULT_MAX_THREADS );
+        this( quantum, DEFAULT_MAX_THREADS, false, 1 );
     }
 
     // A new feature added to p161 
     // A constructor to receive the max number of threads to be spawned
     public Scheduler( int quantum, int maxThreads ) {
+        this( quantum, maxThreads, false, 1 );
+    }
+
+    // multilevel = true selects the multilevel feedback queue;
+    // nCpus > 1 runs that many threads at once (SMP)
+    public Scheduler( int quantum, int maxThreads, boolean multilevel,
+                      int nCpus ) {
         timeSlice = quantum;
-        queue = new Vector( );
-        initTid( maxThreads );
+        initQueue( Math.max( nCpus, 1 ), multilevel ? MLFQ_LEVELS : 1 );
+        initTid( Math.max( maxThreads, 1 ) );
     }
 
-    private void schedulerSleep( ) {
-        try {
-            Thread.sleep( timeSlice );
-        } catch ( InterruptedException e ) { }
+    public int getCpus( ) {
+        return cpus.length;
+    }
+
+    // The quantum of each level doubles: timeSlice / 2, timeSlice, 2 * timeSlice
+    private int quantum( int level ) {
+        if ( levels == 1 )
+            return timeSlice;
+        return ( timeSlice / 2 ) << level;
+    }
+
+    // The CPU with the fewest queued threads
+    private Processor leastLoaded( ) {
+        Processor best = cpus[0];
+        for ( int i = 1; i < cpus.length; i++ )
+            if ( cpus[i].load( ) < best.load( ) )
+                best = cpus[i];
+        return best;
     }
 
     // A modified addThread of p161 example
@@ -99,87 +165,244 @@ public class Scheduler extends Thread
         if ( tid == -1)
             return null;
         TCB tcb = new TCB( t, tid, pid ); // create a new TCB
-    
-        // the following if and for statements are for file system.
-        if ( parentTcb != null ) {
-            for ( int i = 0; i < 32; i++ ) {
-                tcb.ftEnt[i] = parentTcb.ftEnt[i];
-                // JFM added 2012-12-01
-                // increment the count for any file table entries inherited from parent
-                if ( tcb.ftEnt[i] != null )
-                    tcb.ftEnt[i].count++;
-            }
+
+        // the following if statement is for file system.
+        // the child shares the parent's fds, and with them the counts of
+        // their file table entries, until one of the two changes them
+        if ( parentTcb != null )
+            tcb.inheritFds( parentTcb );
+
+        tcbTable.put( t, tcb );
+        Processor cpu = leastLoaded( );
+        synchronized ( cpu ) {
+            tcb.setCpu( cpu.id );
+            cpu.queue[0].add( tcb );
+            cpu.notify( ); // wake up an idle dispatcher
         }
-    
-        queue.add( tcb );
         return tcb;
     }
 
     // A new feature added to p161
     // Removing the TCB of a terminating thread
     public boolean deleteThread( ) {
-        TCB tcb = getMyTcb( ); 
+        TCB tcb = getMyTcb( );
         if ( tcb == null )
             return false;
         else {
-            // JFM added 2012-12-01
-            // if any file table entries are still open, decrement their count
-            for ( int i = 3; i < 32; i++ )
-                if ( tcb.ftEnt[i] != null )
-                    // JFM changed 2012-12-13
-                    // close any open file descriptors rather than decrement the counts
-                    // to ensure that system-wide file table entries are removed
-                    // when no longer needed
-                    SysLib.close( i );
-            return tcb.setTerminated( );
+            // JFM changed 2012-12-13
+            // close any open file descriptors rather than decrement the counts
+            // to ensure that system-wide file table entries are removed
+            // when no longer needed (none if another thread shares them)
+            for ( int fd : tcb.leaveFds( ) )
+                SysLib.close( fd );
+            Processor cpu = cpus[tcb.getCpu( )];
+            synchronized ( cpu ) {
+                tcb.setTerminated( );
+                if ( tcb == cpu.running ) {
+                    cpu.yielded = true; // let the dispatcher move on right away
+                    cpu.notify( );
+                }
+            }
+            return true;
+        }
+    }
+
+    // Takes the calling thread off the run queue while it sleeps in a
+    // SyncQueue or in sleepThread. Threads unknown to the scheduler (the
+    // boot thread) are ignored. A thread caught in the middle of being
+    // stolen simply stays runnable.
+    public void blockThread( TCB tcb ) {
+        if ( tcb == null )
+            return;
+        Processor cpu = cpus[tcb.getCpu( )];
+        synchronized ( cpu ) {
+            if ( cpu.queue[tcb.getLevel( )].remove( tcb ) ) {
+                tcb.setBlocked( true );
+                if ( tcb == cpu.running ) {
+                    cpu.yielded = true;
+                    cpu.notify( );
+                }
+            }
+        }
+    }
+
+    // Puts a woken thread back at the tail of the level it blocked on, on
+    // the CPU it last ran on; a thread that gives up the CPU early keeps its
+    // priority
+    public void unblockThread( TCB tcb ) {
+        if ( tcb == null )
+            return;
+        Processor cpu = cpus[tcb.getCpu( )];
+        synchronized ( cpu ) {
+            if ( tcb.getBlocked( ) ) {
+                tcb.setBlocked( false );
+                cpu.queue[tcb.getLevel( )].add( tcb );
+                cpu.notify( );
+            }
         }
     }
 
     public void sleepThread( int milliseconds ) {
+        TCB tcb = getMyTcb( );
+        blockThread( tcb );
         try {
             sleep( milliseconds );
         } catch ( InterruptedException e ) { }
+        unblockThread( tcb );
     }
-    
-    // A modified run of p161
-    public void run( ) {
+
+    // Returns the first TCB of the highest non-empty level of this CPU.
+    // Terminated TCBs are reaped on the way. When the CPU has nothing to run
+    // it steals from the busiest one, and otherwise waits: for good on a
+    // uniprocessor, or for one time slice before looking for work again.
+    private TCB nextTcb( Processor cpu ) throws InterruptedException {
+        while ( true ) {
+            synchronized ( cpu ) {
+                for ( int level = 0; level < levels; level++ ) {
+                    while ( cpu.queue[level].size( ) > 0 ) {
+                        TCB tcb = cpu.queue[level].peekFirst( );
+                        if ( tcb.getTerminated( ) == false )
+                            return tcb;
+                        cpu.queue[level].pollFirst( );
+                        tcbTable.remove( tcb.getThread( ) );
+                        returnTid( tcb.getTid( ) );
+                    }
+                }
+                if ( cpus.length == 1 ) {
+                    cpu.wait( ); // idle until a thread is added or woken up
+                    continue;
+                }
+            }
+            if ( steal( cpu ) == false ) {
+                synchronized ( cpu ) {
+                    if ( cpu.load( ) == 0 )
+                        cpu.wait( timeSlice );
+                }
+            }
+        }
+    }
+
+    // Moves the last TCB of the busiest other CPU to this one. Only one
+    // CPU lock is held at a time, so dispatchers can't deadlock.
+    private boolean steal( Processor thief ) {
+        Processor victim = null;
+        for ( int i = 0; i < cpus.length; i++ )
+            if ( cpus[i] != thief && cpus[i].load( ) > 1
+                 && ( victim == null || cpus[i].load( ) > victim.load( ) ) )
+                victim = cpus[i];
+        if ( victim == null )
+            return false;
+        TCB tcb = null;
+        synchronized ( victim ) {
+            for ( int level = levels - 1; level >= 0 && tcb == null; level-- ) {
+                ArrayDeque<TCB> q = victim.queue[level];
+                if ( q.size( ) > 0 && q.peekLast( ) != victim.running )
+                    tcb = q.pollLast( );
+            }
+            if ( tcb == null )
+                return false;
+            tcb.setCpu( thief.id );
+        }
+        synchronized ( thief ) {
+            thief.queue[tcb.getLevel( )].add( tcb );
+        }
+        return true;
+    }
+
+    // Moves every thread of a CPU back to level 0 so long-running threads
+    // can't be starved by a stream of interactive ones
+    private void boost( Processor cpu ) {
+        synchronized ( cpu ) {
+            for ( int level = 1; level < levels; level++ ) {
+                for ( TCB tcb : cpu.queue[level] )
+                    tcb.setLevel( 0 );
+                cpu.queue[0].addAll( cpu.queue[level] );
+                cpu.queue[level].clear( );
+            }
+        }
+    }
+
+    // A modified run of p161: the dispatch loop of one CPU
+    private void dispatch( Processor cpu ) {
         Thread current = null;
-    
-        this.setPriority( 6 );
-        
+
+        cpu.lastBoost = System.currentTimeMillis( );
+
         while ( true ) {
             try {
                 // get the next TCB and its thrad
-                if ( queue.size( ) == 0 )
-                    continue;
-                TCB currentTCB = (TCB)queue.firstElement( );
-                if ( currentTCB.getTerminated( ) == true ) {
-                    queue.remove( currentTCB );
-                    returnTid( currentTCB.getTid( ) );
-                    continue;
-                }
+                TCB currentTCB = nextTcb( cpu );
+                int level = currentTCB.getLevel( );
                 current = currentTCB.getThread( );
                 if ( current != null ) {
-                    if ( current.isAlive( ) )
-                        current.setPriority( 4 );
-                    else {
-                        // Spawn must be controlled by Scheduler
-                        // Scheduler must start a new thread
-                        current.start( ); 
-                        current.setPriority( 4 );
+                    synchronized ( current ) {
+                        if ( current.isAlive( ) || current.getState( ) != Thread.State.NEW )
+                            current.setPriority( 4 );
+                        else {
+                            // Spawn must be controlled by Scheduler
+                            // Scheduler must start a new thread
+                            current.start( );
+                            current.setPriority( 4 );
+                        }
                     }
                 }
-                
-                schedulerSleep( );
+
+                // run it for one quantum, or less if it blocks or exits
+                boolean expired;
+                synchronized ( cpu ) {
+                    cpu.running = currentTCB;
+                    // it may have blocked or exited since nextTcb picked it,
+                    // and then nobody would tell this dispatcher
+                    cpu.yielded = currentTCB.getBlocked( ) || currentTCB.getTerminated( );
+                    long deadline = System.currentTimeMillis( ) + quantum( level );
+                    long remaining;
+                    while ( !cpu.yielded
+                            && ( remaining = deadline - System.currentTimeMillis( ) ) > 0 )
+                        cpu.wait( remaining );
+                    expired = !cpu.yielded;
+                    cpu.running = null;
+                }
                 // System.out.println("* * * Context Switch * * * ");
-                
-                synchronized ( queue ) {
+                Metrics.contextSwitches.increment( );
+                if ( expired )
+                    Metrics.preemptions.increment( );
+
+                synchronized ( cpu ) {
                     if ( current != null && current.isAlive( ) )
                         current.setPriority( 2 );
-                    queue.remove( currentTCB ); // rotate this TCB to the end
-                    queue.add( currentTCB );
+                    if ( cpu.queue[level].remove( currentTCB ) ) {
+                        // used up its quantum: demote it one level
+                        if ( expired && level < levels - 1 )
+                            currentTCB.setLevel( ++level );
+                        cpu.queue[level].add( currentTCB ); // rotate this TCB to the end
+                    }
                 }
+
+                if ( levels > 1
+                     && System.currentTimeMillis( ) - cpu.lastBoost >= BOOST_PERIOD * timeSlice ) {
+                    boost( cpu );
+                    cpu.lastBoost = System.currentTimeMillis( );
+                }
+            } catch ( InterruptedException e ) {
             } catch ( NullPointerException e3 ) { };
         }
     }
+
+    // CPU 0 is dispatched by the Scheduler thread itself, every other CPU
+    // by a helper thread of the same priority
+    public void run( ) {
+        this.setPriority( 6 );
+        for ( int i = 1; i < cpus.length; i++ ) {
+            final Processor cpu = cpus[i];
+            Thread dispatcher = new Thread( new Runnable( ) {
+                public void run( ) {
+                    dispatch( cpu );
+                }
+            } );
+            dispatcher.setDaemon( true );
+            dispatcher.setPriority( 6 );
+            dispatcher.start( );
+        }
+        dispatch( cpus[0] );
+    }
 }
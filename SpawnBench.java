@@ -0,0 +1,64 @@
+import java.util.Date;
+
+// Spawns many concurrent programs and measures how fast they are created
+// and how fast they block and wake up in the kernel.
+// Usage: l SpawnBench [programs] [switches per program]
+// Boot with maxthreads= above the program count, and compare
+// threads=platform against threads=virtual.
+public class SpawnBench extends Thread {
+   private int programs = 10000;
+   private int switches = 10;
+   private boolean child = false;
+
+   public SpawnBench( ) {
+   }
+
+   public SpawnBench( String args[] ) {
+      if ( args.length > 0 && args[0].equals( "child" ) ) {
+         // spawned by the benchmark itself
+         child = true;
+         switches = Integer.parseInt( args[1] );
+         return;
+      }
+      if ( args.length > 0 )
+         programs = Integer.parseInt( args[0] );
+      if ( args.length > 1 )
+         switches = Integer.parseInt( args[1] );
+   }
+
+   // every sleep takes the program off the run queue and parks it until
+   // it is woken up again: one round trip through the kernel's block/wake path
+   private void runChild( ) {
+      for ( int i = 0; i < switches; i++ )
+         SysLib.sleep( 1 );
+      SysLib.exit( );
+   }
+
+   public void run( ) {
+      if ( child ) {
+         runChild( );
+         return;
+      }
+      String[] args = { "SpawnBench", "child", "" + switches };
+
+      long start = new Date( ).getTime( );
+      int spawned = 0;
+      for ( int i = 0; i < programs; i++ )
+         if ( SysLib.exec( args ) >= 0 )
+            spawned++;
+      long spawnTime = new Date( ).getTime( ) - start;
+
+      for ( int i = 0; i < spawned; i++ )
+         SysLib.join( );
+      long totalTime = new Date( ).getTime( ) - start;
+
+      SysLib.cout( "spawned " + spawned + " of " + programs + " programs in "
+                   + spawnTime + " ms ("
+                   + ( spawned * 1000L / Math.max( spawnTime, 1 ) ) + " spawns/sec)\n" );
+      SysLib.cout( ( ( long )spawned * switches ) + " block/wake switches, all done in "
+                   + totalTime + " ms ("
+                   + ( ( long )spawned * switches * 1000L / Math.max( totalTime, 1 ) )
+                   + " switches/sec)\n" );
+      SysLib.exit( );
+   }
+}
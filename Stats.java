@@ -0,0 +1,40 @@
+// Prints the kernel's metrics (see Metrics), one "name{labels} value" line
+// each, in the text format Prometheus scrapes. Given prefixes, prints only
+// the lines of metrics whose names start with one of them.
+// Usage: l Stats [prefix ...]
+// e.g.   l Stats syscall_latency_ns cache_
+public class Stats extends Thread {
+   private String[] prefixes;
+
+   public Stats( ) {
+      prefixes = new String[0];
+   }
+
+   public Stats( String args[] ) {
+      prefixes = args;
+   }
+
+   private boolean wanted( String line ) {
+      if ( prefixes.length == 0 )
+         return true;
+      for ( int i = 0; i < prefixes.length; i++ )
+         if ( line.startsWith( prefixes[i] ) )
+            return true;
+      return false;
+   }
+
+   public void run( ) {
+      StringBuffer report = new StringBuffer( );
+      if ( SysLib.stats( report ) != Kernel.OK ) {
+         SysLib.cerr( "Stats: no metrics\n" );
+         SysLib.exit( );
+         return;
+      }
+      StringBuilder out = new StringBuilder( );
+      for ( String line : report.toString( ).split( "\n" ) )
+         if ( wanted( line ) )
+            out.append( line ).append( '\n' );
+      SysLib.cout( out.toString( ) );
+      SysLib.exit( );
+   }
+}
@@ -1,19 +1,41 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
 public class SuperBlock {
     private final int defaultInodeBlocks = 64;
     private final int totalBlockLocation = 0;
     private final int totalInodeLocation = 4;
     private final int freeListLocation = 8;
+    private final int blockSizeLocation = 12;
+    private final int inodeSizeLocation = 16;
+    private final int warmCountLocation = 20;
+    private final int warmListLocation = 24;
     private final int defaultTotalBlocks = 1000;
 
-    private final static int blockSize = Disk.blockSize;
-
     private final static int NULL_BLOCK = -1;
 
+    private final int capacity; // the disk capacity in bytes
+
+    // guards the free list; held across disk I/O, so it must not pin a
+    // virtual thread the way a monitor would
+    private final ReentrantLock lock = new ReentrantLock();
+
     public int totalBlocks; // the number of disk blocks
     public int inodeBlocks; // the number of inodes
     public int freeList; // the block number of the free list's head
+    public int blockSize; // the # of bytes in 1 block, chosen at format time
+    public int inodeSize; // the # of bytes in 1 inode, chosen at format time
+
+    // the blocks the cache held at the last sync, to be prefetched at boot;
+    // kept in the otherwise unused rest of block 0
+    private int[] warmBlocks = new int[0];
 
+    // diskSize is given in blocks of Disk.defaultBlockSize
     public SuperBlock(int diskSize) {
+        capacity = diskSize * Disk.defaultBlockSize;
+        blockSize = SysLib.blockSize(); // current disk geometry
+        // block 0 starts at byte 0 of the disk whatever the block size, so
+        // the fields below can be read before the geometry is known
         byte[] superBlock = new byte[blockSize];
         int offset = 0;
         SysLib.rawread(0, superBlock); // read from block 0 of disk
@@ -24,99 +46,247 @@ public class SuperBlock {
         offset += 4;
         freeList = SysLib.bytes2int(superBlock, offset);
         offset += 4;
+        int formattedSize = SysLib.bytes2int(superBlock, offset);
+        offset += 4;
+        if (formattedSize == 0) // disk formatted before block sizes were recorded
+            formattedSize = Disk.defaultBlockSize;
+        int formattedInodeSize = SysLib.bytes2int(superBlock, offset);
+        if (formattedInodeSize == 0) // disk formatted before inode sizes were recorded
+            formattedInodeSize = Inode.iNodeSize;
         // format if necessary
-        if ((totalBlocks == diskSize) && (inodeBlocks > 0) && (freeList >= 2)) {
+        if (Disk.isValidBlockSize(formattedSize) && (totalBlocks == capacity / formattedSize)
+                && (inodeBlocks > 0) && (freeList >= 2)
+                && Inode.isValidSize(formattedInodeSize, formattedSize) && setBlockSize(formattedSize)) {
+            setInodeSize(formattedInodeSize);
             // do not format
+            readWarmBlocks();
             return;
         } else {
             // format
-            totalBlocks = diskSize;
             format();
         }
     }
 
-    // writes back totalBlocks, inodeBlocks, and freeList to disk
+    // switches the disk and the inode layout to a new block size
+    private boolean setBlockSize(int size) {
+        if (!Kernel.setBlockSize(size))
+            return false; // rejected by the disk
+        blockSize = size;
+        totalBlocks = capacity / blockSize;
+        Inode.setBlockSize(blockSize);
+        return true;
+    }
+
+    private void setInodeSize(int size) {
+        inodeSize = size;
+        Inode.setSize(size);
+    }
+
+    // reads the warm list, at the formatted block size; a disk that never
+    // recorded one has a count of 0 there
+    private void readWarmBlocks() {
+        byte[] superBlock = new byte[blockSize];
+        SysLib.rawread(0, superBlock);
+        int count = SysLib.bytes2int(superBlock, warmCountLocation);
+        if (count < 0 || count > warmCapacity())
+            return; // not a warm list
+        int[] blocks = new int[count];
+        int valid = 0;
+        for (int i = 0; i < count; i++) {
+            int block = SysLib.bytes2int(superBlock, warmListLocation + i * 4);
+            if (block > 0 && block < totalBlocks)
+                blocks[valid++] = block;
+        }
+        warmBlocks = java.util.Arrays.copyOf(blocks, valid);
+    }
+
+    // the # of block numbers the warm list can hold
+    public int warmCapacity() {
+        return (blockSize - warmListLocation) / 4;
+    }
+
+    public int[] getWarmBlocks() {
+        lock.lock();
+        try {
+            return warmBlocks.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // replaces the warm list (written by the next sync) with up to
+    // warmCapacity() of the first count blocks
+    public void setWarmBlocks(int[] blocks, int count) {
+        lock.lock();
+        try {
+            warmBlocks = java.util.Arrays.copyOf(blocks, Math.min(count, warmCapacity()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // writes back totalBlocks, inodeBlocks, freeList, blockSize, inodeSize and
+    // the warm list to disk
     public void sync() {
-        byte[] buffer = new byte[blockSize];
-        // insert SuperBlock properties into buffer
-        int offset = 0;
-        SysLib.int2bytes(totalBlocks, buffer, offset);
-        offset += 4;
-        SysLib.int2bytes(inodeBlocks, buffer, offset);
-        offset += 4;
-        SysLib.int2bytes(freeList, buffer, offset);
-        offset += 4;
-        SysLib.rawwrite(0, buffer); // write to block 0 of disk
-        SysLib.cerr("Superblock synchronized\n");
+        lock.lock();
+        try {
+            byte[] buffer = new byte[blockSize];
+            // insert SuperBlock properties into buffer
+            int offset = 0;
+            SysLib.int2bytes(totalBlocks, buffer, offset);
+            offset += 4;
+            SysLib.int2bytes(inodeBlocks, buffer, offset);
+            offset += 4;
+            SysLib.int2bytes(freeList, buffer, offset);
+            offset += 4;
+            SysLib.int2bytes(blockSize, buffer, offset);
+            offset += 4;
+            SysLib.int2bytes(inodeSize, buffer, offset);
+            offset += 4;
+            SysLib.int2bytes(warmBlocks.length, buffer, offset);
+            offset += 4;
+            for (int i = 0; i < warmBlocks.length; i++, offset += 4)
+                SysLib.int2bytes(warmBlocks[i], buffer, offset);
+            SysLib.rawwrite(0, buffer); // write to block 0 of disk
+            SysLib.cerr("Superblock synchronized\n");
+        } finally {
+            lock.unlock();
+        }
     }
 
     // dequeues the top block from the free list
     public int getFreeBlock() {
-        int returnBlock = freeList; // the first free block
+        lock.lock();
+        try {
+            int returnBlock = freeList; // the first free block
 
-        // look for the first free block, if any
-        if (returnBlock != NULL_BLOCK) {
-            byte[] buffer = new byte[blockSize];
-            SysLib.rawread(returnBlock, buffer); // read selected free block from disk
-            freeList = SysLib.bytes2int(buffer, 0); // get next free block from buffer
-            SysLib.int2bytes(0, buffer, 0); // erase the next free block pointer, so all data in the block is 0
-            SysLib.rawwrite(returnBlock, buffer); // write empty block back to disk
+            // look for the first free block, if any
+            if (returnBlock != NULL_BLOCK) {
+                byte[] buffer = new byte[blockSize];
+                SysLib.rawread(returnBlock, buffer); // read selected free block from disk
+                freeList = SysLib.bytes2int(buffer, 0); // get next free block from buffer
+                SysLib.int2bytes(0, buffer, 0); // erase the next free block pointer, so all data in the block is 0
+                SysLib.rawwrite(returnBlock, buffer); // write empty block back to disk
+                Metrics.blocksAllocated.increment();
+            }
+            return returnBlock; // return the dequeued free block number
+        } finally {
+            lock.unlock();
         }
-        return returnBlock; // return the dequeued free block number
     }
     
-    public boolean returnBlock(int blockNumber) {
-        if (blockNumber >= 0) {
+    // Takes up to n blocks off the free list at once into blocks, sorted so
+    // that a file given them in turn lies on the disk in order, and returns
+    // how many it took. Unlike getFreeBlock() it leaves their contents as
+    // they are: the caller writes each of them whole.
+    public int getFreeBlocks(int n, int[] blocks) {
+        lock.lock();
+        try {
             byte[] buffer = new byte[blockSize];
-            for (int i = 0; i < blockSize; i++)
-                buffer[i] = 0;
-            SysLib.int2bytes(freeList, buffer, 0);
-            SysLib.rawwrite(blockNumber, buffer);
-            freeList = blockNumber;
-            return true;
+            int taken = 0;
+            for (; taken < n && freeList != NULL_BLOCK; taken++) {
+                blocks[taken] = freeList;
+                SysLib.rawread(freeList, buffer); // for the next free block
+                freeList = SysLib.bytes2int(buffer, 0);
+            }
+            Arrays.sort(blocks, 0, taken);
+            Metrics.blocksAllocated.add(taken);
+            return taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean returnBlock(int blockNumber) {
+        lock.lock();
+        try {
+            if (blockNumber >= 0) {
+                byte[] buffer = new byte[blockSize];
+                for (int i = 0; i < blockSize; i++)
+                    buffer[i] = 0;
+                SysLib.int2bytes(freeList, buffer, 0);
+                SysLib.rawwrite(blockNumber, buffer);
+                freeList = blockNumber;
+                Metrics.blocksFreed.increment();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
     
+    // holds the free list still, with no block allocated or freed, until
+    // unlockFreeList(); the file system check changes freeList meanwhile
+    public void lockFreeList() {
+        lock.lock();
+    }
+
+    public void unlockFreeList() {
+        lock.unlock();
+    }
+
     public void format() {
-        format(defaultInodeBlocks);
+        format(defaultInodeBlocks, blockSize);
     }
 
     public boolean format(int totalFiles) {
-        // Set to default if total files doesn't make sense
-        if (totalFiles < 0)
-            return false; // fail
-        inodeBlocks = totalFiles;
-
-        // initialize all Inodes as "unused" and write to disk
-        Inode freeInode;
-        for (short iNum = 0; iNum < inodeBlocks; iNum++) {
-            freeInode = new Inode(); // empty iNode (not read from disk)
-            freeInode.flag = Inode.FLAG_UNUSED;
-            freeInode.toDisk(iNum);
-        }
+        return format(totalFiles, blockSize);
+    }
 
-        // The first free block after SuperBlock and inodeBlocks.
-        // Adding 2 to the total size of inodes to account
-        // for SuperBlock and uneven division.
-        freeList = 2 + inodeBlocks * Inode.iNodeSize / blockSize;
-
-        // setting up free blocks
-        // start at first free block (after SuperBlock and Inodes)
-        for (int blockNum = freeList; blockNum <= totalBlocks - 2; blockNum++) {
-            byte[] buffer = new byte[blockSize]; // buffer for new free block
-            java.util.Arrays.fill(buffer, (byte) 0); // ensure that buffer is filled with 0
-            SysLib.int2bytes(blockNum + 1, buffer, 0); // point to next free block
-            SysLib.rawwrite(blockNum, buffer); // write block to disk
-        }
-        // setting up the last free block
-        {
-            byte[] buffer = new byte[blockSize]; // buffer for new free block
-            java.util.Arrays.fill(buffer, (byte) 0); // ensure that buffer is filled with 0
-            SysLib.int2bytes(NULL_BLOCK, buffer, 0); // point to NULL next free block
-            SysLib.rawwrite(totalBlocks - 1, buffer); // write to last free block on disk
+    // keeps the inode size, as the first format of a disk keeps the original
+    public boolean format(int totalFiles, int size) {
+        return format(totalFiles, size, inodeSize > 0 ? inodeSize : Inode.iNodeSize);
+    }
+
+    public boolean format(int totalFiles, int size, int iNodeSize) {
+        lock.lock();
+        try {
+            // Set to default if total files doesn't make sense
+            if (totalFiles < 0)
+                return false; // fail
+            // the inodes, the SuperBlock and at least one data block must fit
+            if (!Disk.isValidBlockSize(size) || !Inode.isValidSize(iNodeSize, size)
+                    || 2 + totalFiles * iNodeSize / size >= capacity / size)
+                return false; // fail
+            if (!setBlockSize(size))
+                return false; // fail
+            setInodeSize(iNodeSize);
+            inodeBlocks = totalFiles;
+            warmBlocks = new int[0]; // the old blocks mean nothing now
+
+            // initialize all Inodes as "unused" and write to disk
+            Inode freeInode;
+            for (short iNum = 0; iNum < inodeBlocks; iNum++) {
+                freeInode = new Inode(); // empty iNode (not read from disk)
+                freeInode.flag = Inode.FLAG_UNUSED;
+                freeInode.toDisk(iNum);
+            }
+
+            // The first free block after SuperBlock and inodeBlocks.
+            // Adding 2 to the total size of inodes to account
+            // for SuperBlock and uneven division.
+            freeList = 2 + inodeBlocks * inodeSize / blockSize;
+
+            // setting up free blocks
+            // start at first free block (after SuperBlock and Inodes)
+            for (int blockNum = freeList; blockNum <= totalBlocks - 2; blockNum++) {
+                byte[] buffer = new byte[blockSize]; // buffer for new free block
+                java.util.Arrays.fill(buffer, (byte) 0); // ensure that buffer is filled with 0
+                SysLib.int2bytes(blockNum + 1, buffer, 0); // point to next free block
+                SysLib.rawwrite(blockNum, buffer); // write block to disk
+            }
+            // setting up the last free block
+            {
+                byte[] buffer = new byte[blockSize]; // buffer for new free block
+                java.util.Arrays.fill(buffer, (byte) 0); // ensure that buffer is filled with 0
+                SysLib.int2bytes(NULL_BLOCK, buffer, 0); // point to NULL next free block
+                SysLib.rawwrite(totalBlocks - 1, buffer); // write to last free block on disk
+            }
+            sync();
+            return true; // succeed
+        } finally {
+            lock.unlock();
         }
-        sync();
-        return true; // succeed
     }
 }
@@ -0,0 +1,53 @@
+import java.util.function.BooleanSupplier;
+
+public class SyncQueue {
+    private QueueNode queue[] = null;
+    private final int COND_MAX = 10;
+    private final int NO_PID = -1;
+
+    private void initQueue( int condMax ) {
+        queue = new QueueNode[ condMax ];
+        for ( int i = 0; i < condMax; i++ )
+            queue[i] = new QueueNode( );
+    }
+
+    public SyncQueue( ) {
+        initQueue( COND_MAX );
+    }
+
+    public SyncQueue( int condMax ) {
+        initQueue( condMax );
+    }
+
+    // sleeps until dequeueAndWakeup( condition ), returning the waker's tid
+    int enqueueAndSleep( int condition ) {
+        if ( condition >= 0 && condition < queue.length )
+            return queue[condition].sleep( );
+        else
+            return -1;
+    }
+
+    void dequeueAndWakeup( int condition, int tid ) {
+        if ( condition >= 0 && condition < queue.length )
+            queue[condition].wakeup( tid );
+    }
+
+    void dequeueAndWakeup( int condition ) {
+        dequeueAndWakeup( condition, 0 );
+    }
+
+    // sleeps until done is true; only wakeOne( condition ) wakes it up
+    int sleepUntil( int condition, BooleanSupplier done ) {
+        if ( condition < 0 || condition >= queue.length )
+            return -1;
+        queue[condition].sleepUntil( done );
+        return 0;
+    }
+
+    // wakes the oldest thread in sleepUntil( condition ), if any
+    boolean wakeOne( int condition ) {
+        if ( condition >= 0 && condition < queue.length )
+            return queue[condition].signal( );
+        return false;
+    }
+}
@@ -16,6 +16,11 @@ public class SysLib {
 				 Kernel.BOOT, 0, null );
     }
 
+    public static int boot( String options[] ) {
+	    return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.BOOT, 0, options );
+    }
+
     public static int exit( ) {
 	    return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.EXIT, 0, null );
@@ -47,13 +52,11 @@ public class SysLib {
     }
 
     public static int rawread( int blkNumber, byte[] b ) {
-        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
-				 Kernel.RAWREAD, blkNumber, b );
+        return Kernel.rawread( blkNumber, b );
     }
 
     public static int rawwrite( int blkNumber, byte[] b ) {
-        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
-				 Kernel.RAWWRITE, blkNumber, b );
+        return Kernel.rawwrite( blkNumber, b );
     }
 
     public static int sync( ) {
@@ -83,24 +86,44 @@ public class SysLib {
 
     /*  ---- FINAL PROJECT OPERATIONS ----- */
 
+    // open, read, write and seek (and rawread/rawwrite above) call the
+    // kernel's typed entry points, which allocate nothing; interrupt( )
+    // still accepts all of them for older callers
+
     public static int format( int files ) {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.FORMAT, files, null);
     }
 
+    public static int format( int files, int blockSize ) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.FORMAT, files, new int[] {blockSize});
+    }
+
+    // inodeSize 32 gives the original inodes, which a format otherwise
+    // keeps; larger ones (up to 256) keep files that fit in them inline,
+    // without a data block
+    public static int format( int files, int blockSize, int inodeSize ) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.FORMAT, files,
+                                new int[] {blockSize, inodeSize});
+    }
+
+    public static int blockSize( ) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.BLKSIZE, 0, null);
+    }
+
     public static int open( String fileName, String mode ) {
-        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.OPEN, 0, new String[] {fileName, mode});
+        return Kernel.open(fileName, mode);
     }
 
     public static int read( int fd, byte buffer[] ) {
-        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.READ, fd, buffer);
+        return Kernel.read(fd, buffer);
     }
 
     public static int write( int fd, byte buffer[] ) {
-        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.WRITE, fd, buffer);
+        return Kernel.write(fd, buffer);
     }
 
     public static int seek( int fd, int offset, int whence ) {
-        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.SEEK, fd, new int[] {offset, whence});
+        return Kernel.seek(fd, offset, whence);
     }
 
     public static int close( int fd ) {
@@ -115,6 +138,59 @@ public class SysLib {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.SIZE, fd, null);
     }
 
+    // runs the operations queued in batch and returns how many succeeded;
+    // batch.result( slot ) has each one's return value
+    public static int submit( SyscallBatch batch ) {
+        return Kernel.submit(batch);
+    }
+
+    // appends the kernel's metrics to s, one "name{labels} value" line each
+    public static int stats( StringBuffer s ) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.STATS, 0, s);
+    }
+
+    // checks the file system, and repairs it if r asks for that; returns
+    // the # of problems found, which r details
+    public static int fsck( FsckReport r ) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.FSCK, 0, r);
+    }
+
+    // dst becomes a copy of src that shares its blocks until either is
+    // written to, so that copying takes no time or space of its own
+    public static int clone( String src, String dst ) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CLONE, 0,
+                                new String[] { src, dst });
+    }
+
+    // copies len bytes at offIn in fdIn to offOut in fdOut inside the
+    // kernel, leaving both seek pointers where they are; returns the # of
+    // bytes copied
+    public static int copyRange( int fdIn, int offIn, int fdOut, int offOut, int len ) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.COPYRANGE, fdIn,
+                                new int[] { offIn, fdOut, offOut, len });
+    }
+
+    // frees the blocks of length bytes at offset in fd, which then read as
+    // zeros; the file keeps its size. (Seeking past the end of a file and
+    // writing leaves a hole too.)
+    public static int punchHole( int fd, int offset, int length ) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.PUNCHHOLE, fd,
+                                new int[] { offset, length });
+    }
+
+    // sets fd's size to length: only the blocks past a shorter length are
+    // freed, and a longer one ends in a hole
+    public static int truncate( int fd, int length ) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.TRUNCATE, fd,
+                                new int[] { length });
+    }
+
+    // fills in the next page of a listing of the files, with their sizes
+    // (see DirListing); returns the # of files on it, 0 at the end
+    public static int readdir( DirListing l ) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.READDIR, 0, l);
+    }
+
     /*  ---- END OF FINAL PROJECT OPERATIONS ----- */
 
     public static String[] stringToArgs( String s ) {
@@ -0,0 +1,121 @@
+// A batch of file and disk operations that a thread fills in and hands to
+// the kernel with one SysLib.submit( ) call. The kernel runs them in order
+// and leaves each operation's return value in result( slot ), which is
+// what the matching SysLib call would have returned.
+//
+// An operation given the descriptor LINK uses the descriptor of the one
+// before it (the fd an open returned, or the fd it used), and is cancelled
+// with ERROR if that operation failed. So open, read and close of one file
+// can be queued together without knowing the fd in advance.
+//
+// Consecutive rawread/rawwrite operations are independent of each other,
+// and the kernel may run them in block order to shorten disk seeks. It
+// keeps submission order when two of them share a buffer or a block.
+public class SyscallBatch {
+   public final static int LINK = -2; // the previous operation's descriptor
+
+   // the queued operations, in submission order
+   int op[];        // Kernel.OPEN, READ, WRITE, SEEK, CLOSE, RAWREAD, RAWWRITE
+   int fd[];        // the descriptor, or the block number of a raw operation
+   int offset[];    // seek offset
+   int whence[];    // seek whence
+   byte buffer[][]; // read, write and raw buffers
+   String name[];   // open file name
+   String mode[];   // open mode
+   int result[];    // return values, filled in by the kernel
+   int order[];     // kernel scratch for reordering disk work
+
+   int count;       // # of operations queued
+   int submitted;   // # of operations already run
+
+   public SyscallBatch( int capacity ) {
+      op = new int[capacity];
+      fd = new int[capacity];
+      offset = new int[capacity];
+      whence = new int[capacity];
+      buffer = new byte[capacity][];
+      name = new String[capacity];
+      mode = new String[capacity];
+      result = new int[capacity];
+      order = new int[capacity];
+      clear( );
+   }
+
+   // Forgets all operations and their results, so the batch can be reused
+   public void clear( ) {
+      for ( int i = 0; i < count; i++ ) {
+         buffer[i] = null;
+         name[i] = null;
+         mode[i] = null;
+      }
+      count = 0;
+      submitted = 0;
+   }
+
+   // Each of these queues one operation and returns its slot, or -1 when
+   // the batch is full
+
+   public int open( String fileName, String fileMode ) {
+      int slot = add( Kernel.OPEN, -1 );
+      if ( slot >= 0 ) {
+         name[slot] = fileName;
+         mode[slot] = fileMode;
+      }
+      return slot;
+   }
+
+   public int read( int fileDesc, byte data[] ) {
+      return add( Kernel.READ, fileDesc, data );
+   }
+
+   public int write( int fileDesc, byte data[] ) {
+      return add( Kernel.WRITE, fileDesc, data );
+   }
+
+   public int seek( int fileDesc, int seekOffset, int seekWhence ) {
+      int slot = add( Kernel.SEEK, fileDesc );
+      if ( slot >= 0 ) {
+         offset[slot] = seekOffset;
+         whence[slot] = seekWhence;
+      }
+      return slot;
+   }
+
+   public int close( int fileDesc ) {
+      return add( Kernel.CLOSE, fileDesc );
+   }
+
+   public int rawread( int blkNumber, byte data[] ) {
+      return add( Kernel.RAWREAD, blkNumber, data );
+   }
+
+   public int rawwrite( int blkNumber, byte data[] ) {
+      return add( Kernel.RAWWRITE, blkNumber, data );
+   }
+
+   // # of operations queued since the last clear( )
+   public int size( ) {
+      return count;
+   }
+
+   // the return value of the operation in slot, once it has been submitted
+   public int result( int slot ) {
+      return result[slot];
+   }
+
+   private int add( int operation, int fileDesc, byte data[] ) {
+      int slot = add( operation, fileDesc );
+      if ( slot >= 0 )
+         buffer[slot] = data;
+      return slot;
+   }
+
+   private int add( int operation, int fileDesc ) {
+      if ( count == op.length )
+         return -1;
+      op[count] = operation;
+      fd[count] = fileDesc;
+      result[count] = Kernel.ERROR;
+      return count++;
+   }
+}
@@ -0,0 +1,103 @@
+import java.lang.management.ManagementFactory;
+
+// Measures what the hot file syscalls allocate and how long they take, once
+// through the typed entry points SysLib uses and once through the old
+// Kernel.interrupt( ) calling convention with its argument arrays.
+// seek never touches the disk; every read and write does, so those run
+// fewer iterations.
+// Usage: l SyscallBench [seeks] [reads/writes]
+// Allocation is counted per thread, which the JVM only supports for
+// platform threads, so boot without threads=virtual.
+public class SyscallBench extends Thread {
+   private final static String fileName = "syscallbench";
+
+   private int seeks = 100000;
+   private int ios = 10;
+   private com.sun.management.ThreadMXBean bean;
+   private long threadId;
+
+   public SyscallBench( ) {
+   }
+
+   public SyscallBench( String args[] ) {
+      if ( args.length > 0 )
+         seeks = Integer.parseInt( args[0] );
+      if ( args.length > 1 )
+         ios = Integer.parseInt( args[1] );
+   }
+
+   private long allocated( ) {
+      return bean.getThreadAllocatedBytes( threadId );
+   }
+
+   // one call of the syscall being measured
+   private interface Call {
+      void run( int fd, byte[] buffer );
+   }
+
+   private void measure( String name, int iterations, int fd, byte[] buffer,
+                         Call call ) {
+      // warm up once so lazily created buffers aren't counted
+      call.run( fd, buffer );
+      long bytes = allocated( );
+      long start = System.nanoTime( );
+      for ( int i = 0; i < iterations; i++ )
+         call.run( fd, buffer );
+      long nanos = System.nanoTime( ) - start;
+      bytes = allocated( ) - bytes;
+      SysLib.cout( name + ( bytes / iterations ) + " bytes/op, "
+                   + ( nanos / iterations ) + " ns/op\n" );
+   }
+
+   private static int interrupt( int cmd, int param, Object args ) {
+      return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, cmd, param, args );
+   }
+
+   public void run( ) {
+      java.lang.management.ThreadMXBean threads
+         = ManagementFactory.getThreadMXBean( );
+      if ( !( threads instanceof com.sun.management.ThreadMXBean )
+           || !( ( com.sun.management.ThreadMXBean )threads )
+                 .isThreadAllocatedMemorySupported( ) ) {
+         SysLib.cerr( "SyscallBench: this JVM can't count allocations\n" );
+         SysLib.exit( );
+         return;
+      }
+      bean = ( com.sun.management.ThreadMXBean )threads;
+      bean.setThreadAllocatedMemoryEnabled( true );
+      threadId = Thread.currentThread( ).getId( );
+      if ( allocated( ) < 0 ) {
+         SysLib.cerr( "SyscallBench: can't count allocations of this thread\n" );
+         SysLib.exit( );
+         return;
+      }
+
+      int fd = SysLib.open( fileName, "w+" );
+      if ( fd < 0 ) {
+         SysLib.cerr( "SyscallBench: can't open " + fileName + "\n" );
+         SysLib.exit( );
+         return;
+      }
+      byte[] buffer = new byte[64];
+      SysLib.write( fd, buffer ); // so that there is something to read
+
+      measure( "seek  typed:     ", seeks, fd, buffer,
+               ( f, b ) -> SysLib.seek( f, 0, 0 ) );
+      measure( "seek  interrupt: ", seeks, fd, buffer,
+               ( f, b ) -> interrupt( Kernel.SEEK, f, new int[] { 0, 0 } ) );
+      measure( "read  typed:     ", ios, fd, buffer,
+               ( f, b ) -> { SysLib.seek( f, 0, 0 ); SysLib.read( f, b ); } );
+      measure( "read  interrupt: ", ios, fd, buffer,
+               ( f, b ) -> { interrupt( Kernel.SEEK, f, new int[] { 0, 0 } );
+                             interrupt( Kernel.READ, f, b ); } );
+      measure( "write typed:     ", ios, fd, buffer,
+               ( f, b ) -> { SysLib.seek( f, 0, 0 ); SysLib.write( f, b ); } );
+      measure( "write interrupt: ", ios, fd, buffer,
+               ( f, b ) -> { interrupt( Kernel.SEEK, f, new int[] { 0, 0 } );
+                             interrupt( Kernel.WRITE, f, b ); } );
+
+      SysLib.close( fd );
+      SysLib.delete( fileName );
+      SysLib.exit( );
+   }
+}
@@ -4,7 +4,17 @@ public class TCB {
 	private int pid = 0;
 	private boolean terminated = false;
 	private int sleepTime = 0;
-	public FileTableEntry[] ftEnt = null; // added for the file system
+	private int level = 0; // run queue level (multilevel feedback queue)
+	private int cpu = 0; // the virtual CPU whose run queue holds this TCB
+	private boolean blocked = false; // off the run queue, sleeping in the kernel
+	private FdTable fds = new FdTable(); // added for the file system
+
+	// announce every new thread on stderr (boot option spawnlog=verbose)
+	private static volatile boolean verbose = false;
+
+	public static void setVerbose(boolean announce) {
+		verbose = announce;
+	}
 
 	public TCB(Thread newThread, int myTid, int parentTid) {
 		thread = newThread;
@@ -12,13 +22,8 @@ public class TCB {
 		pid = parentTid;
 		terminated = false;
 
-		// The following code is added for the file system
-		ftEnt = new FileTableEntry[32];
-		for (int i = 0; i < 32; i++)
-			ftEnt[i] = null; // all entries initialized to null
-		// fd[0], fd[1], and fd[2] are kept null.
-
-		System.err.println("threadOS: a new thread (thread=" + thread + " tid=" + tid + " pid=" + pid + ")");
+		if (verbose)
+			System.err.println("threadOS: a new thread (thread=" + thread + " tid=" + tid + " pid=" + pid + ")");
 	}
 
 	public synchronized Thread getThread() {
@@ -42,34 +47,67 @@ public class TCB {
 		return terminated;
 	}
 
+	public synchronized int getLevel() {
+		return level;
+	}
+
+	public synchronized void setLevel(int newLevel) {
+		level = newLevel;
+	}
+
+	public synchronized int getCpu() {
+		return cpu;
+	}
+
+	public synchronized void setCpu(int cpuId) {
+		cpu = cpuId;
+	}
+
+	public synchronized boolean getBlocked() {
+		return blocked;
+	}
+
+	public synchronized void setBlocked(boolean isBlocked) {
+		blocked = isBlocked;
+	}
+
 	// added for the file system
 	public synchronized int getFd(FileTableEntry entry) {
 		if (entry == null)
 			return -1;
-		for (int i = 3; i < 32; i++) {
-			if (ftEnt[i] == null) {
-				ftEnt[i] = entry;
-				return i;
-			}
-		}
-		return -1;
+		fds = fds.forWrite();
+		return fds.add(entry);
 	}
 
 	// added for the file system
 	public synchronized FileTableEntry returnFd(int fd) {
-		if (fd >= 3 && fd < 32) {
-			FileTableEntry oldEnt = ftEnt[fd];
-			ftEnt[fd] = null;
-			return oldEnt;
-		} else
+		if (fds.get(fd) == null)
 			return null;
+		fds = fds.forWrite();
+		return fds.remove(fd);
 	}
 
 	// added for the file systme
 	public synchronized FileTableEntry getFtEnt(int fd) {
-		if (fd >= 3 && fd < 32)
-			return ftEnt[fd];
-		else
-			return null;
+		return fds.get(fd);
+	}
+
+	// a spawned thread starts out with its parent's fds, sharing them until
+	// either of the two opens or closes a file (see FdTable)
+	public synchronized void inheritFds(TCB parent) {
+		fds = parent.sharedFds();
+	}
+
+	private synchronized FdTable sharedFds() {
+		return fds.share();
+	}
+
+	// The fds an exiting thread should close: none if other threads still
+	// share its table, and so its files
+	public synchronized int[] leaveFds() {
+		if (!fds.leave())
+			return fds.openFds();
+		fds = new FdTable();
+		return new int[0];
 	}
 }
@@ -0,0 +1,239 @@
+import java.util.Date;
+import java.util.Random;
+
+// Measures the disk cache with four access patterns.
+// Usage: l Test4 enabled|disabled testcase
+//        l Test4 policies testcase [frames]
+// testcase 1 = random, 2 = localized, 3 = mixed, 4 = adversary, 5 = all.
+// "policies" runs the test case once for every replacement policy, each
+// time through a fresh cache of the given size (10 frames by default) and
+// with the same random numbers, and prints its hit ratio and the average
+// time per access.
+class Test4 extends Thread {
+   private boolean enabled;
+   private int testcase;
+   private long startTime;
+   private long endTime;
+   private byte[] wbytes;
+   private byte[] rbytes;
+   private Random rand;
+
+   // "policies" mode only
+   private boolean policies = false;
+   private int frames = 10;
+   private String policyName;
+   private Cache policyCache;  // the cache under test
+   private long accesses;      // # of reads and writes in this test
+   private long accessNanos;   // time they took
+   private long startHits;
+   private long startMisses;
+
+   private void getPerformance( String msg ) {
+      if ( policies ) {
+         long hits = policyCache.getHits( ) - startHits;
+         long misses = policyCache.getMisses( ) - startMisses;
+         SysLib.cout( "Test " + msg + "(" + policyName + "): hit ratio = "
+                      + ( hits * 1000 / Math.max( hits + misses, 1 ) ) / 10.0
+                      + "%, " + accessNanos / Math.max( accesses, 1 ) / 1000
+                      + " us/access, " + ( endTime - startTime ) + " ms\n" );
+      } else if ( enabled == true )
+         SysLib.cout( "Test " + msg + "(cache enabled): "
+                      + ( endTime - startTime ) + "\n" );
+      else
+         SysLib.cout( "Test " + msg + "(cache disabled): "
+                      + ( endTime - startTime ) + "\n" );
+   }
+
+   private void read( int blk, byte buffer[] ) {
+      if ( policies ) {
+         long start = System.nanoTime( );
+         policyCache.read( blk, buffer );
+         accessNanos += System.nanoTime( ) - start;
+         accesses++;
+      } else if ( enabled == true )
+         SysLib.cread( blk, buffer );
+      else
+         SysLib.rawread( blk, buffer );
+   }
+
+   private void write( int blk, byte buffer[] ) {
+      if ( policies ) {
+         long start = System.nanoTime( );
+         policyCache.write( blk, buffer );
+         accessNanos += System.nanoTime( ) - start;
+         accesses++;
+      } else if ( enabled == true )
+         SysLib.cwrite( blk, buffer );
+      else
+         SysLib.rawwrite( blk, buffer );
+   }
+
+   private void randomAccess( ) {
+      int[] accessIndex = new int[200];
+      for ( int i = 0; i < 200; i++ )
+         accessIndex[i] = Math.abs( rand.nextInt( ) % 512 );
+      for ( int i = 0; i < 200; i++ ) {
+         for ( int j = 0; j < 512; j++ )
+            wbytes[j] = ( byte )j;
+         write( accessIndex[i], wbytes );
+      }
+      for ( int i = 0; i < 200; i++ ) {
+         read( accessIndex[i], rbytes );
+         for ( int j = 0; j < 512; j++ ) {
+            if ( rbytes[j] != wbytes[j] ) {
+               SysLib.cerr( "ERROR\n" );
+               SysLib.exit( );
+            }
+         }
+      }
+   }
+
+   private void localizedAccess( ) {
+      for ( int i = 0; i < 20; i++ ) {
+         for ( int j = 0; j < 512; j++ )
+            wbytes[j] = ( byte )( i + j );
+         for ( int j = 0; j < 1000; j += 100 )
+            write( j, wbytes );
+         for ( int j = 0; j < 1000; j += 100 ) {
+            read( j, rbytes );
+            for ( int k = 0; k < 512; k++ ) {
+               if ( rbytes[k] != wbytes[k] ) {
+                  SysLib.cerr( "ERROR\n" );
+                  SysLib.exit( );
+               }
+            }
+         }
+      }
+   }
+
+   private void mixedAccess( ) {
+      int[] accessIndex = new int[200];
+      for ( int i = 0; i < 200; i++ ) {
+         if ( Math.abs( rand.nextInt( ) % 10 ) > 8 ) {
+            // random
+            accessIndex[i] = Math.abs( rand.nextInt( ) % 512 );
+         } else {
+            // localized
+            accessIndex[i] = Math.abs( rand.nextInt( ) % 10 );
+         }
+      }
+      for ( int i = 0; i < 200; i++ ) {
+         for ( int j = 0; j < 512; j++ )
+            wbytes[j] = ( byte )j;
+         write( accessIndex[i], wbytes );
+      }
+      for ( int i = 0; i < 200; i++ ) {
+         read( accessIndex[i], rbytes );
+         for ( int j = 0; j < 512; j++ ) {
+            if ( rbytes[j] != wbytes[j] ) {
+               SysLib.cerr( "ERROR\n" );
+               SysLib.exit( );
+            }
+         }
+      }
+   }
+
+   private void adversaryAccess( ) {
+      for ( int i = 0; i < 20; i++ ) {
+         for ( int j = 0; j < 512; j++ )
+            wbytes[j] = ( byte )j;
+         for ( int j = 0; j < 10; j++ )
+            write( i * 10 + j, wbytes );
+      }
+      for ( int i = 0; i < 20; i++ ) {
+         for ( int j = 0; j < 10; j++ ) {
+            read( i * 10 + j, rbytes );
+            for ( int k = 0; k < 512; k++ ) {
+               if ( rbytes[k] != wbytes[k] ) {
+                  SysLib.cerr( "ERROR\n" );
+                  SysLib.exit( );
+               }
+            }
+         }
+      }
+   }
+
+   public Test4( String args[] ) {
+      enabled = args[0].equals( "enabled" ) ? true : false;
+      policies = args[0].equals( "policies" );
+      testcase = Integer.parseInt( args[1] );
+      if ( policies && args.length > 2 )
+         frames = Integer.parseInt( args[2] );
+      wbytes = new byte[Disk.defaultBlockSize];
+      rbytes = new byte[Disk.defaultBlockSize];
+      rand = new Random( );
+   }
+
+   private void begin( ) {
+      startTime = new Date( ).getTime( );
+      accesses = 0;
+      accessNanos = 0;
+      if ( policies ) {
+         startHits = policyCache.getHits( );
+         startMisses = policyCache.getMisses( );
+      }
+   }
+
+   private void runTests( ) {
+      switch ( testcase ) {
+         case 1:
+            begin( );
+            randomAccess( );
+            endTime = new Date( ).getTime( );
+            getPerformance( "random accesses" );
+            break;
+         case 2:
+            begin( );
+            localizedAccess( );
+            endTime = new Date( ).getTime( );
+            getPerformance( "localized accesses" );
+            break;
+         case 3:
+            begin( );
+            mixedAccess( );
+            endTime = new Date( ).getTime( );
+            getPerformance( "mixed accesses" );
+            break;
+         case 4:
+            begin( );
+            adversaryAccess( );
+            endTime = new Date( ).getTime( );
+            getPerformance( "adversary accesses" );
+            break;
+         case 5:
+            begin( );
+            randomAccess( );
+            endTime = new Date( ).getTime( );
+            getPerformance( "random accesses" );
+            begin( );
+            localizedAccess( );
+            endTime = new Date( ).getTime( );
+            getPerformance( "localized accesses" );
+            begin( );
+            mixedAccess( );
+            endTime = new Date( ).getTime( );
+            getPerformance( "mixed accesses" );
+            begin( );
+            adversaryAccess( );
+            endTime = new Date( ).getTime( );
+            getPerformance( "adversary accesses" );
+            break;
+      }
+   }
+
+   public void run( ) {
+      SysLib.flush( );
+      if ( policies ) {
+         long seed = new Date( ).getTime( );
+         for ( int i = 0; i < CachePolicy.names.length; i++ ) {
+            policyName = CachePolicy.names[i];
+            policyCache = new Cache( Disk.defaultBlockSize, frames, policyName );
+            rand = new Random( seed ); // the same accesses for every policy
+            runTests( ); // dropped afterwards, not synced: the file system
+                         // blocks hold test data now
+         }
+      } else
+         runTests( );
+      SysLib.exit( );
+   }
+}
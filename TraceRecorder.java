@@ -0,0 +1,280 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Records the block and file syscalls user threads make into a compact
+// binary trace file, for Replay to run again later. Started by the boot
+// option trace=<file>; the file is flushed on every SysLib.sync( ) and when
+// the JVM exits.
+//
+// Only the syscalls a program makes itself are recorded: the disk reads of
+// a cache miss, the cache reads of a file read and the work of the kernel's
+// own threads are left out, as they depend on the configuration a trace is
+// replayed with.
+//
+// The file is a header, then one record per syscall in the order they
+// finished. Numbers are varints (7 bits a byte, low first); the signed ones
+// are zigzag-encoded first.
+//    header: "TOSTRACE", int version, int block size, int disk blocks
+//    record: byte   op (a Kernel syscall number)
+//            signed start - the previous record's start, in us
+//            number duration in us
+//            number tid
+//            signed target: a block, or an fd (the one returned for OPEN)
+//            signed length: bytes read or written, or the SEEK offset
+//            signed result
+//            SEEK only: byte whence
+//            OPEN and DELETE: the file name, OPEN also the mode, each a
+//            number of bytes and then the UTF-8 bytes
+public class TraceRecorder {
+   public final static int version = 1;
+   private final static byte[] magic = "TOSTRACE".getBytes( StandardCharsets.US_ASCII );
+
+   // One syscall of a trace
+   public static class Record {
+      public int op;
+      public long start;     // us since the trace began
+      public int micros;     // how long it took
+      public int tid;
+      public int target;
+      public long length;
+      public int result;
+      public int whence;
+      public String name;
+      public String mode;
+   }
+
+   private final OutputStream out;
+   private final ReentrantLock lock = new ReentrantLock( );
+   private final long baseNanos = System.nanoTime( );
+   private long lastStart = 0;     // us, of the last record written
+   private boolean failed = false; // stops recording after an I/O error
+   private final byte[] scratch = new byte[64]; // guarded by lock
+
+   // Per thread: how deep in syscalls it is (only depth 1 is recorded),
+   // and when its outermost syscall began
+   private static class Depth {
+      int depth;
+      long startNanos;
+   }
+
+   private final ThreadLocal<Depth> depth = ThreadLocal.withInitial( Depth::new );
+
+   // Creates fileName, or throws if it can't
+   public TraceRecorder( String fileName, int blockSize, int diskBlocks )
+      throws IOException {
+      out = new BufferedOutputStream( new FileOutputStream( fileName ), 1 << 16 );
+      out.write( magic );
+      int n = 0;
+      n = putInt( n, version );
+      n = putInt( n, blockSize );
+      n = putInt( n, diskBlocks );
+      out.write( scratch, 0, n );
+      Runtime.getRuntime( ).addShutdownHook( new Thread( this::flush ) );
+   }
+
+   // A syscall begins; every enter( ) must be followed by an exit( )
+   public void enter( ) {
+      Depth d = depth.get( );
+      if ( d.depth++ == 0 )
+         d.startNanos = System.nanoTime( );
+   }
+
+   // A syscall as interrupt( ) saw it is done
+   public void exit( int cmd, int param, Object args, int result ) {
+      int length = ( args instanceof byte[] ) ? ( ( byte[] )args ).length : 0;
+      switch ( cmd ) {
+         case Kernel.OPEN:
+            String[] s = ( String[] )args;
+            exit( cmd, result, 0, 0, s[0], s[1], result );
+            return;
+         case Kernel.SEEK:
+            int[] seekArgs = ( int[] )args;
+            exit( cmd, param, seekArgs[0], seekArgs[1], null, null, result );
+            return;
+         case Kernel.DELETE:
+            exit( cmd, 0, 0, 0, ( String )args, null, result );
+            return;
+         default:
+            exit( cmd, param, length, 0, null, null, result );
+      }
+   }
+
+   // A syscall is done: cmd on target (a block or fd), with the given
+   // length (or seek offset) and whence, and for OPEN and DELETE a file
+   // name and mode. Records it if it is one Replay knows and was made by a
+   // user thread itself.
+   public void exit( int cmd, int target, long length, int whence,
+                     String name, String mode, int result ) {
+      Depth d = depth.get( );
+      if ( d.depth == 0 ) // entered before the recorder existed (BOOT)
+         return;
+      if ( --d.depth > 0 || !isTraced( cmd, target ) )
+         return;
+      long end = System.nanoTime( );
+      TCB myTcb = Kernel.getMyTcb( );
+      if ( myTcb == null ) // a kernel thread
+         return;
+      long start = ( d.startNanos - baseNanos ) / 1000;
+      lock.lock( );
+      try {
+         if ( failed )
+            return;
+         int n = 0;
+         scratch[n++] = ( byte )cmd;
+         n = putSigned( n, start - lastStart );
+         n = putNumber( n, ( end - d.startNanos ) / 1000 );
+         n = putNumber( n, myTcb.getTid( ) );
+         n = putSigned( n, target );
+         n = putSigned( n, length );
+         n = putSigned( n, result );
+         if ( cmd == Kernel.SEEK )
+            scratch[n++] = ( byte )whence;
+         out.write( scratch, 0, n );
+         if ( cmd == Kernel.OPEN || cmd == Kernel.DELETE )
+            putString( name );
+         if ( cmd == Kernel.OPEN )
+            putString( mode );
+         lastStart = start;
+      } catch ( IOException e ) {
+         failed = true;
+         SysLib.cerr( "threadOS: trace stopped: " + e + "\n" );
+      } finally {
+         lock.unlock( );
+      }
+   }
+
+   private static boolean isTraced( int cmd, int target ) {
+      switch ( cmd ) {
+         case Kernel.RAWREAD:
+         case Kernel.RAWWRITE:
+         case Kernel.CREAD:
+         case Kernel.CWRITE:
+         case Kernel.OPEN:
+         case Kernel.DELETE:
+            return true;
+         case Kernel.READ:
+         case Kernel.WRITE:
+         case Kernel.CLOSE:
+         case Kernel.SIZE:
+         case Kernel.SEEK:
+            return target > Kernel.STDERR; // not the console
+      }
+      return false;
+   }
+
+   // Writes what is buffered out to the file
+   public void flush( ) {
+      lock.lock( );
+      try {
+         if ( !failed )
+            out.flush( );
+      } catch ( IOException e ) {
+         failed = true;
+         SysLib.cerr( "threadOS: trace stopped: " + e + "\n" );
+      } finally {
+         lock.unlock( );
+      }
+   }
+
+   private int putInt( int n, int value ) {
+      for ( int shift = 24; shift >= 0; shift -= 8 )
+         scratch[n++] = ( byte )( value >>> shift );
+      return n;
+   }
+
+   private int putNumber( int n, long value ) {
+      while ( ( value & ~0x7FL ) != 0 ) {
+         scratch[n++] = ( byte )( ( value & 0x7F ) | 0x80 );
+         value >>>= 7;
+      }
+      scratch[n++] = ( byte )value;
+      return n;
+   }
+
+   private int putSigned( int n, long value ) {
+      return putNumber( n, ( value << 1 ) ^ ( value >> 63 ) );
+   }
+
+   private void putString( String s ) throws IOException {
+      byte[] bytes = ( s == null ? "" : s ).getBytes( StandardCharsets.UTF_8 );
+      out.write( scratch, 0, putNumber( 0, bytes.length ) );
+      out.write( bytes );
+   }
+
+   // A trace file read back: its header and its records, in file order
+   public static class Trace {
+      public int blockSize;
+      public int diskBlocks;
+      public List<Record> records = new ArrayList<Record>( );
+   }
+
+   public static Trace read( String fileName ) throws IOException {
+      try ( DataInputStream in = new DataInputStream(
+               new BufferedInputStream( new FileInputStream( fileName ) ) ) ) {
+         byte[] header = new byte[magic.length];
+         in.readFully( header );
+         if ( !Arrays.equals( header, magic ) )
+            throw new IOException( fileName + " is not a trace" );
+         if ( in.readInt( ) != version )
+            throw new IOException( fileName + ": unknown trace version" );
+         Trace trace = new Trace( );
+         trace.blockSize = in.readInt( );
+         trace.diskBlocks = in.readInt( );
+         long start = 0;
+         int op;
+         while ( ( op = in.read( ) ) >= 0 ) {
+            Record r = new Record( );
+            r.op = op;
+            r.start = start += getSigned( in );
+            r.micros = ( int )getNumber( in );
+            r.tid = ( int )getNumber( in );
+            r.target = ( int )getSigned( in );
+            r.length = getSigned( in );
+            r.result = ( int )getSigned( in );
+            if ( op == Kernel.SEEK )
+               r.whence = in.readUnsignedByte( );
+            if ( op == Kernel.OPEN || op == Kernel.DELETE )
+               r.name = getString( in );
+            if ( op == Kernel.OPEN )
+               r.mode = getString( in );
+            trace.records.add( r );
+         }
+         return trace;
+      }
+   }
+
+   private static long getNumber( InputStream in ) throws IOException {
+      long value = 0;
+      for ( int shift = 0; ; shift += 7 ) {
+         int b = in.read( );
+         if ( b < 0 )
+            throw new EOFException( "trace cut off in a record" );
+         value |= ( long )( b & 0x7F ) << shift;
+         if ( ( b & 0x80 ) == 0 )
+            return value;
+      }
+   }
+
+   private static long getSigned( InputStream in ) throws IOException {
+      long value = getNumber( in );
+      return ( value >>> 1 ) ^ -( value & 1 );
+   }
+
+   private static String getString( DataInputStream in ) throws IOException {
+      byte[] bytes = new byte[( int )getNumber( in )];
+      in.readFully( bytes );
+      return new String( bytes, StandardCharsets.UTF_8 );
+   }
+}
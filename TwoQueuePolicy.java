@@ -0,0 +1,68 @@
+// 2Q (Johnson and Shasha): a block used once lives in the FIFO queue A1in.
+// When it is evicted from there, its number is remembered for a while in
+// A1out, and if it is missed again meanwhile it goes to the LRU queue Am.
+// So a scan of blocks used once can only flush A1in, not the blocks in Am
+// that are used over and over. Hits in Am need the stripe lock.
+public class TwoQueuePolicy implements CachePolicy {
+   private final int kin;              // A1in may grow to this, taking from Am
+   private final FrameList free;       // frames holding no block
+   private final FrameList a1in;       // used once, in FIFO order
+   private final FrameList am;         // used again, in LRU order
+   private final GhostList a1out;      // blocks recently evicted from A1in
+   private final int[] blockOf;
+
+   public TwoQueuePolicy( int size ) {
+      kin = Math.max( size / 4, 1 );
+      free = new FrameList( size );
+      a1in = new FrameList( size );
+      am = new FrameList( size );
+      a1out = new GhostList( Math.max( size / 2, 1 ) );
+      blockOf = new int[size];
+      for ( int frame = 0; frame < size; frame++ ) {
+         free.addLast( frame );
+         blockOf[frame] = -1;
+      }
+   }
+
+   public boolean lockFreeHits( ) {
+      return false;
+   }
+
+   public void hit( int frame, int block ) {
+      if ( blockOf[frame] == block && am.contains( frame ) )
+         am.moveToFront( frame );
+   }
+
+   public int victim( Frames frames, int block ) {
+      int frame = free.claimLast( frames );
+      if ( frame >= 0 )
+         return frame;
+      FrameList first = ( a1in.size( ) > kin ) ? a1in : am;
+      frame = first.claimLast( frames );
+      if ( frame < 0 )
+         frame = ( ( first == a1in ) ? am : a1in ).claimLast( frames );
+      return frame;
+   }
+
+   public void loaded( int frame, int block ) {
+      if ( a1in.contains( frame ) && blockOf[frame] >= 0 )
+         a1out.addFirst( blockOf[frame] );
+      free.remove( frame );
+      a1in.remove( frame );
+      am.remove( frame );
+      if ( a1out.contains( block ) ) { // missed again soon after eviction
+         a1out.remove( block );
+         am.addFirst( frame );
+      } else
+         a1in.addFirst( frame );
+      blockOf[frame] = block;
+   }
+
+   public void removed( int frame ) {
+      a1in.remove( frame );
+      am.remove( frame );
+      if ( !free.contains( frame ) )
+         free.addLast( frame );
+      blockOf[frame] = -1;
+   }
+}
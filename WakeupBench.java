@@ -0,0 +1,97 @@
+import java.util.Arrays;
+
+// Measures how long the kernel takes to wake up a sleeping thread:
+//  1. join: from a child's exit until its parent returns from join
+//  2. disk: rawread time beyond the disk's own 20 ms transfer time
+//  3. contention: rawread throughput of several threads sharing the disk
+// Usage: l WakeupBench [iterations] [threads]
+public class WakeupBench extends Thread {
+   private final static int transferTime = 20; // Disk.transferTime in ms
+
+   private static volatile long exitStamp; // written by the child
+
+   private int iterations = 50;
+   private int threads = 4;
+   private boolean child = false;
+   private String childMode = "";
+
+   public WakeupBench( ) {
+   }
+
+   public WakeupBench( String args[] ) {
+      if ( args.length > 0 && args[0].startsWith( "child" ) ) {
+         // spawned by the benchmark itself
+         child = true;
+         childMode = args[0];
+         iterations = Integer.parseInt( args[1] );
+         return;
+      }
+      if ( args.length > 0 )
+         iterations = Integer.parseInt( args[0] );
+      if ( args.length > 1 )
+         threads = Integer.parseInt( args[1] );
+   }
+
+   private static String percentiles( long[] micros ) {
+      Arrays.sort( micros );
+      return "p50 = " + micros[micros.length / 2]
+         + " us, p99 = " + micros[( micros.length * 99 ) / 100]
+         + " us, max = " + micros[micros.length - 1] + " us";
+   }
+
+   private void joinLatency( ) {
+      String[] args = { "WakeupBench", "child-exit", "0" };
+      long[] micros = new long[iterations];
+      for ( int i = 0; i < iterations; i++ ) {
+         SysLib.exec( args );
+         SysLib.join( );
+         micros[i] = ( System.nanoTime( ) - exitStamp ) / 1000;
+      }
+      SysLib.cout( "join wakeup:        " + percentiles( micros ) + "\n" );
+   }
+
+   private void diskLatency( ) {
+      byte[] buffer = new byte[SysLib.blockSize( )];
+      long[] micros = new long[iterations];
+      SysLib.rawread( 1, buffer ); // park the head on block 1's track
+      for ( int i = 0; i < iterations; i++ ) {
+         long start = System.nanoTime( );
+         SysLib.rawread( 1, buffer );
+         micros[i] = Math.max( ( System.nanoTime( ) - start ) / 1000
+                               - transferTime * 1000, 0 );
+      }
+      SysLib.cout( "disk completion:    " + percentiles( micros )
+                   + " beyond the transfer time\n" );
+   }
+
+   private void contention( ) {
+      String[] args = { "WakeupBench", "child-read", "" + iterations };
+      long start = System.nanoTime( );
+      for ( int i = 0; i < threads; i++ )
+         SysLib.exec( args );
+      for ( int i = 0; i < threads; i++ )
+         SysLib.join( );
+      long millis = ( System.nanoTime( ) - start ) / 1000000;
+      SysLib.cout( threads + " threads x " + iterations + " rawreads: "
+                   + ( threads * iterations * 1000L / Math.max( millis, 1 ) )
+                   + " ops/sec (the disk alone allows "
+                   + ( 1000 / transferTime ) + ")\n" );
+   }
+
+   public void run( ) {
+      if ( child ) {
+         if ( childMode.equals( "child-read" ) ) {
+            byte[] buffer = new byte[SysLib.blockSize( )];
+            for ( int i = 0; i < iterations; i++ )
+               SysLib.rawread( 1, buffer );
+         }
+         exitStamp = System.nanoTime( );
+         SysLib.exit( );
+         return;
+      }
+      joinLatency( );
+      diskLatency( );
+      contention( );
+      SysLib.exit( );
+   }
+}
@@ -0,0 +1,18 @@
+import threados.jmh.Fixtures;
+
+public class JmhCache implements Fixtures.CacheFixture {
+   private Cache cache;
+
+   public void setUp( int frames, String policy, boolean offHeap ) {
+      JmhKernel.boot( );
+      cache = new Cache( SysLib.blockSize( ), frames, policy, offHeap );
+   }
+
+   public int blockSize( ) {
+      return SysLib.blockSize( );
+   }
+
+   public boolean read( int block, byte[] buffer ) {
+      return cache.read( block, buffer );
+   }
+}
@@ -0,0 +1,23 @@
+import threados.jmh.Fixtures;
+
+public class JmhDirectory implements Fixtures.DirectoryFixture {
+   private Directory directory;
+
+   public void setUp( int files ) {
+      directory = new Directory( 64 );
+      for ( int i = 0; i < files; i++ )
+         directory.ialloc( "f" + i );
+   }
+
+   public short namei( String fileName ) {
+      return directory.namei( fileName );
+   }
+
+   public short ialloc( String fileName ) {
+      return directory.ialloc( fileName );
+   }
+
+   public boolean ifree( short iNumber ) {
+      return directory.ifree( iNumber );
+   }
+}
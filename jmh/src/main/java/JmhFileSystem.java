@@ -0,0 +1,38 @@
+import threados.jmh.Fixtures;
+
+public class JmhFileSystem implements Fixtures.FileSystemFixture {
+   private FileSystem fs;
+   private FileTableEntry file;
+   private int blockSize;
+
+   public void setUp( ) {
+      JmhKernel.boot( );
+      fs = new FileSystem( 1000 ); // the kernel's own one stays idle
+      fs.format( 64 );
+      blockSize = SysLib.blockSize( );
+      file = fs.open( "bench", "w+" );
+      fs.write( file, new byte[( directBlocks( ) + indirectBlocks( ) ) * blockSize] );
+   }
+
+   public int blockSize( ) {
+      return blockSize;
+   }
+
+   public int directBlocks( ) {
+      return Inode.directSize;
+   }
+
+   public int indirectBlocks( ) {
+      return blockSize / 2; // short pointers in the index block
+   }
+
+   public int read( int block, byte[] buffer ) {
+      fs.seek( file, block * blockSize, 0 );
+      return fs.read( file, buffer );
+   }
+
+   public int write( int block, byte[] buffer ) {
+      fs.seek( file, block * blockSize, 0 );
+      return fs.write( file, buffer );
+   }
+}
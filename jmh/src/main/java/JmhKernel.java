@@ -0,0 +1,13 @@
+// Boots the kernel once per JVM for the benchmarks, on an in-memory disk
+// and with no background cache threads, so that nothing but the benchmark
+// runs
+public class JmhKernel {
+   private static boolean booted = false;
+
+   public static synchronized void boot( ) {
+      if ( booted )
+         return;
+      SysLib.boot( new String[] { "disk=memory", "dirtyexpire=0", "warmtime=0" } );
+      booted = true;
+   }
+}
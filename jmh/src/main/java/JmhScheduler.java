@@ -0,0 +1,16 @@
+import threados.jmh.Fixtures;
+
+public class JmhScheduler implements Fixtures.SchedulerFixture {
+   private Scheduler scheduler;
+
+   public void setUp( int others ) {
+      scheduler = new Scheduler( 1000, others + 1 );
+      for ( int i = 0; i < others; i++ )
+         scheduler.addThread( new Thread( ) );
+      scheduler.addThread( Thread.currentThread( ) );
+   }
+
+   public Object getMyTcb( ) {
+      return scheduler.getMyTcb( );
+   }
+}
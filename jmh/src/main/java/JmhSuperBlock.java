@@ -0,0 +1,18 @@
+import threados.jmh.Fixtures;
+
+public class JmhSuperBlock implements Fixtures.SuperBlockFixture {
+   private SuperBlock superBlock;
+
+   public void setUp( ) {
+      JmhKernel.boot( ); // which formats the blank disk
+      superBlock = new SuperBlock( 1000 );
+   }
+
+   public int getFreeBlock( ) {
+      return superBlock.getFreeBlock( );
+   }
+
+   public boolean returnBlock( int block ) {
+      return superBlock.returnBlock( block );
+   }
+}
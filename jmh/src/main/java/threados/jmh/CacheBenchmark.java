@@ -0,0 +1,56 @@
+package threados.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A private Cache of 64 frames in front of the in-memory disk: reads of
+// a few blocks that stay cached (the hit path) and reads that cycle
+// through four times as many blocks as there are frames (the miss path,
+// with a victim search and a disk read each)
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class CacheBenchmark {
+   private static final int frames = 64;
+   private static final int hotBlocks = 8;
+
+   @Param( { "clock", "arc" } )
+   public String policy;
+
+   @Param( { "heap", "offheap" } )
+   public String memory;
+
+   private Fixtures.CacheFixture cache;
+   private byte[] buffer;
+   private int next = 0;
+
+   @Setup
+   public void setUp( ) {
+      cache = Fixtures.create( "JmhCache" );
+      cache.setUp( frames, policy, memory.equals( "offheap" ) );
+      buffer = new byte[cache.blockSize( )];
+   }
+
+   @Benchmark
+   public boolean hit( ) {
+      return cache.read( next++ % hotBlocks, buffer );
+   }
+
+   @Benchmark
+   public boolean miss( ) {
+      return cache.read( next++ % ( frames * 4 ), buffer );
+   }
+}
@@ -0,0 +1,50 @@
+package threados.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Name lookups and file creation in a Directory, which scans its table of
+// names linearly: namei of the last name, namei of a name that isn't
+// there, and creating and freeing one more file
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class DirectoryBenchmark {
+   // names in the table, all of which a miss scans
+   private static final int files = 16;
+
+   private Fixtures.DirectoryFixture directory;
+
+   @Setup
+   public void setUp( ) {
+      directory = Fixtures.create( "JmhDirectory" );
+      directory.setUp( files );
+   }
+
+   @Benchmark
+   public short nameiHit( ) {
+      return directory.namei( "f" + ( files - 1 ) );
+   }
+
+   @Benchmark
+   public short nameiMiss( ) {
+      return directory.namei( "missing" );
+   }
+
+   @Benchmark
+   public boolean iallocIfree( ) {
+      return directory.ifree( directory.ialloc( "new" ) );
+   }
+}
@@ -0,0 +1,62 @@
+package threados.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Reads and writes whole blocks of one file through FileSystem, and so
+// through the kernel's cache, in order or at random, among the blocks the
+// inode points to directly or among those of its index block
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class FileSystemBenchmark {
+   private static final int accesses = 1024; // a power of 2
+
+   @Param( { "sequential", "random" } )
+   public String access;
+
+   @Param( { "direct", "indirect" } )
+   public String range;
+
+   private Fixtures.FileSystemFixture fs;
+   private int[] blocks;  // the blocks to access, in order
+   private int next = 0;
+   private byte[] buffer;
+
+   @Setup
+   public void setUp( ) {
+      fs = Fixtures.create( "JmhFileSystem" );
+      fs.setUp( );
+      int first = range.equals( "direct" ) ? 0 : fs.directBlocks( );
+      int count = range.equals( "direct" ) ? fs.directBlocks( ) : fs.indirectBlocks( );
+      Random rand = new Random( 1 ); // drawn here, not while measuring
+      blocks = new int[accesses];
+      for ( int i = 0; i < accesses; i++ )
+         blocks[i] = first + ( access.equals( "random" ) ? rand.nextInt( count ) : i % count );
+      buffer = new byte[fs.blockSize( )];
+   }
+
+   @Benchmark
+   public int read( ) {
+      return fs.read( blocks[next++ & ( accesses - 1 )], buffer );
+   }
+
+   @Benchmark
+   public int write( ) {
+      return fs.write( blocks[next++ & ( accesses - 1 )], buffer );
+   }
+}
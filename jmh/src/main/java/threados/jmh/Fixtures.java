@@ -0,0 +1,60 @@
+package threados.jmh;
+
+// The kernel's classes are in the unnamed package, which code in a named
+// package cannot refer to, and JMH only generates code for benchmarks of a
+// named package. So each benchmark drives the kernel through one of these
+// interfaces, implemented by a class of the unnamed package (the Jmh*
+// classes next to this package) and created by name at setup. A call
+// through an interface with a single implementation costs nothing once
+// the JIT has inlined it.
+public final class Fixtures {
+   private Fixtures( ) {
+   }
+
+   public interface FileSystemFixture {
+      // boots the kernel on an in-memory disk and creates a file that fills
+      // the direct and then the indirect range of its inode
+      void setUp( );
+      int blockSize( );
+      int directBlocks( );   // # of blocks of the file in each range
+      int indirectBlocks( );
+      int read( int block, byte[] buffer );  // the file's block-th block
+      int write( int block, byte[] buffer );
+   }
+
+   public interface DirectoryFixture {
+      void setUp( int files ); // a directory with files named f0, f1, ...
+      short namei( String fileName );
+      short ialloc( String fileName );
+      boolean ifree( short iNumber );
+   }
+
+   public interface SuperBlockFixture {
+      void setUp( ); // boots the kernel on an in-memory disk
+      int getFreeBlock( );
+      boolean returnBlock( int block );
+   }
+
+   public interface CacheFixture {
+      // boots the kernel on an in-memory disk and makes a private cache
+      void setUp( int frames, String policy, boolean offHeap );
+      int blockSize( );
+      boolean read( int block, byte[] buffer );
+   }
+
+   public interface SchedulerFixture {
+      // a scheduler, not started, that knows the calling thread and
+      // others - 1 more
+      void setUp( int others );
+      Object getMyTcb( );
+   }
+
+   @SuppressWarnings( "unchecked" )
+   static <T> T create( String className ) {
+      try {
+         return ( T )Class.forName( className ).getDeclaredConstructor( ).newInstance( );
+      } catch ( ReflectiveOperationException e ) {
+         throw new IllegalStateException( "no fixture " + className, e );
+      }
+   }
+}
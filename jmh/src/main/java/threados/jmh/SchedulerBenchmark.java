@@ -0,0 +1,40 @@
+package threados.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Scheduler.getMyTcb, which every system call that needs the caller's
+// TCB goes through, with few and with many threads known
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SchedulerBenchmark {
+   @Param( { "1", "999" } )
+   public int threads;
+
+   private Fixtures.SchedulerFixture scheduler;
+
+   @Setup
+   public void setUp( ) {
+      scheduler = Fixtures.create( "JmhScheduler" );
+      scheduler.setUp( threads - 1 );
+   }
+
+   @Benchmark
+   public Object getMyTcb( ) {
+      return scheduler.getMyTcb( );
+   }
+}
@@ -0,0 +1,36 @@
+package threados.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Taking a block off the free list and giving it back, which read and
+// write the free block itself on the (in-memory) disk, past the cache
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SuperBlockBenchmark {
+   private Fixtures.SuperBlockFixture superBlock;
+
+   @Setup
+   public void setUp( ) {
+      superBlock = Fixtures.create( "JmhSuperBlock" );
+      superBlock.setUp( );
+   }
+
+   @Benchmark
+   public boolean allocateAndFree( ) {
+      return superBlock.returnBlock( superBlock.getFreeBlock( ) );
+   }
+}